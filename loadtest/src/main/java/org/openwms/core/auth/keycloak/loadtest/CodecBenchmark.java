@@ -0,0 +1,142 @@
+/*
+ * Copyright 2005-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openwms.core.auth.keycloak.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import org.openwms.core.auth.keycloak.api.ExternalUser;
+import org.openwms.core.auth.keycloak.api.FindUserRequest;
+import org.openwms.core.auth.keycloak.api.FindUserResponse;
+import org.openwms.core.auth.keycloak.api.UserAuthorization;
+import org.openwms.core.auth.keycloak.api.UserChange;
+import org.openwms.core.auth.keycloak.api.ValidateRequest;
+import org.openwms.core.auth.keycloak.api.WireFormat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A CodecBenchmark compares the wire formats of the provider by encoding and decoding the documents that are exchanged with the external
+ * service. The mappers are configured like the ones of the provider's codec. For each document and {@link WireFormat} it reports the
+ * encoded size and the mean time to encode and to decode one document, measured after a warm-up phase. Options are passed as
+ * {@code --name=value}:
+ *
+ * <pre>
+ * --iterations=200000              Encodings and decodings per document and format
+ * --warmup=50000                   Iterations before the measurement starts
+ * </pre>
+ *
+ * @author Heiko Scherrer
+ */
+public final class CodecBenchmark {
+
+    private static final Map<WireFormat, ObjectMapper> MAPPERS = new EnumMap<>(WireFormat.class);
+    static {
+        MAPPERS.put(WireFormat.JSON, new ObjectMapper());
+        MAPPERS.put(WireFormat.CBOR, new CBORMapper());
+    }
+
+    private static volatile int sink;
+
+    private CodecBenchmark() {
+    }
+
+    /**
+     * The result of one document in one format.
+     *
+     * @param document The name of the document
+     * @param format The wire format
+     * @param bytes The encoded size
+     * @param encodeNanos Mean nanoseconds to encode the document once
+     * @param decodeNanos Mean nanoseconds to decode the document once
+     */
+    record Result(String document, WireFormat format, int bytes, double encodeNanos, double decodeNanos) {
+    }
+
+    public static void main(String[] args) throws IOException {
+        var options = LoadTest.parse(args);
+        var iterations = Integer.parseInt(options.getOrDefault("iterations", "200000"));
+        var warmup = Integer.parseInt(options.getOrDefault("warmup", "50000"));
+        var results = new ArrayList<Result>();
+        for (var document : documents().entrySet()) {
+            for (var format : WireFormat.values()) {
+                measure(document.getKey(), document.getValue(), format, warmup);
+                results.add(measure(document.getKey(), document.getValue(), format, iterations));
+            }
+        }
+        System.out.println(report(results));
+    }
+
+    private static Result measure(String document, Object value, WireFormat format, int iterations) throws IOException {
+        var mapper = MAPPERS.get(format);
+        var type = value.getClass();
+        var encoded = mapper.writeValueAsBytes(value);
+        var blackhole = 0;
+        var start = System.nanoTime();
+        for (var i = 0; i < iterations; i++) {
+            blackhole += mapper.writeValueAsBytes(value).length;
+        }
+        var encodeNanos = (System.nanoTime() - start) / (double) iterations;
+        start = System.nanoTime();
+        for (var i = 0; i < iterations; i++) {
+            blackhole += mapper.readValue(encoded, type).hashCode();
+        }
+        var decodeNanos = (System.nanoTime() - start) / (double) iterations;
+        sink = blackhole;
+        return new Result(document, format, encoded.length, encodeNanos, decodeNanos);
+    }
+
+    private static Map<String, Object> documents() {
+        var user = new ExternalUser();
+        user.setId("4711");
+        user.setUsername("user4711");
+        user.setFirstName("First4711");
+        user.setLastName("Last4711");
+        user.setEmail("user4711@example.com");
+        var findUserResponse = new FindUserResponse();
+        findUserResponse.setExternalUser(user);
+
+        var authorization = new UserAuthorization();
+        authorization.setRealmRoles(List.of("operator", "supervisor", "offline_access"));
+        authorization.setClientRoles(Map.of("wms", List.of("read", "write", "ship"), "tms", List.of("read")));
+        authorization.setGroups(List.of("/warehouse/hamburg", "/warehouse/hamburg/shift-a"));
+        authorization.setAttributes(Map.of("costCenter", List.of("4200"), "plant", List.of("HH01", "HH02")));
+
+        var userChange = new UserChange();
+        userChange.setType(UserChange.Type.UPSERT);
+        userChange.setExternalUser(user);
+        userChange.setCheckpoint("000000000000012345");
+
+        var documents = new LinkedHashMap<String, Object>();
+        documents.put("FindUserRequest", new FindUserRequest("user4711", null));
+        documents.put("FindUserResponse", findUserResponse);
+        documents.put("ValidateRequest", new ValidateRequest("user4711", "password".toCharArray()));
+        documents.put("UserAuthorization", authorization);
+        documents.put("UserChange", userChange);
+        return documents;
+    }
+
+    private static String report(List<Result> results) {
+        var report = new StringBuilder("%-18s %-5s %8s %12s %12s%n".formatted("Document", "Format", "Bytes", "Encode ns", "Decode ns"));
+        results.forEach(r -> report.append("%-18s %-5s %8d %12.0f %12.0f%n".formatted(r.document(), r.format(), r.bytes(),
+                r.encodeNanos(), r.decodeNanos())));
+        return report.toString();
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2005-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openwms.core.auth.keycloak.loadtest;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.keycloak.Config;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.connections.httpclient.HttpClientProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.provider.ProviderEvent;
+import org.keycloak.provider.ProviderEventListener;
+import org.keycloak.storage.UserStorageProvider;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+
+/**
+ * A KeycloakStubs creates the minimal Keycloak runtime objects the provider needs outside a Keycloak server. Only the methods used by the
+ * provider are implemented. All other methods behave like an empty Keycloak: default methods run their default implementation, methods
+ * returning a primitive return its default value, streams and optionals are empty, other interfaces are answered with a stub that behaves
+ * the same way and everything else is {@literal null}.
+ *
+ * @author Heiko Scherrer
+ */
+final class KeycloakStubs {
+
+    private static final Object DEFAULT = new Object();
+    private static final Map<Class<?>, Object> PRIMITIVE_DEFAULTS = Map.of(
+            boolean.class, false,
+            byte.class, (byte) 0,
+            short.class, (short) 0,
+            char.class, '\0',
+            int.class, 0,
+            long.class, 0L,
+            float.class, 0f,
+            double.class, 0d
+    );
+
+    private KeycloakStubs() {
+    }
+
+    /**
+     * Create a session factory with one realm that contains the given component. Each created session offers the given HTTP client like
+     * Keycloak's {@link HttpClientProvider}. Registered listeners are notified of published events, like Keycloak does with the
+     * {@link org.keycloak.models.utils.PostMigrationEvent} at startup.
+     *
+     * @param httpClient The shared HTTP client
+     * @param realm The only realm
+     * @param model The provider component of the realm
+     * @return The session factory stub
+     */
+    static KeycloakSessionFactory sessionFactory(CloseableHttpClient httpClient, RealmModel realm, ComponentModel model) {
+        var listeners = new CopyOnWriteArrayList<ProviderEventListener>();
+        var httpClientProvider = proxy(HttpClientProvider.class, (name, args) -> "getHttpClient".equals(name) ? httpClient : DEFAULT);
+        var realmProvider = proxy(RealmProvider.class, (name, args) -> switch (name) {
+            case "getRealm" -> realm.getId().equals(args[0]) ? realm : null;
+            case "getRealmsStream" -> Stream.of(realm);
+            default -> DEFAULT;
+        });
+        var sessionFactory = new KeycloakSessionFactory[1];
+        sessionFactory[0] = proxy(KeycloakSessionFactory.class, (name, args) -> switch (name) {
+            case "create" -> proxy(KeycloakSession.class, (sessionMethod, sessionArgs) -> switch (sessionMethod) {
+                case "getProvider" -> sessionArgs[0] == HttpClientProvider.class
+                        ? httpClientProvider
+                        : proxy((Class<?>) sessionArgs[0], (providerMethod, providerArgs) -> DEFAULT);
+                case "realms" -> realmProvider;
+                case "getKeycloakSessionFactory" -> sessionFactory[0];
+                default -> DEFAULT;
+            });
+            case "register" -> {
+                listeners.add((ProviderEventListener) args[0]);
+                yield null;
+            }
+            case "unregister" -> {
+                listeners.remove((ProviderEventListener) args[0]);
+                yield null;
+            }
+            case "publish" -> {
+                listeners.forEach(l -> l.onEvent((ProviderEvent) args[0]));
+                yield null;
+            }
+            default -> DEFAULT;
+        });
+        return sessionFactory[0];
+    }
+
+    /**
+     * Create a realm with the given id and name that contains the given user storage component.
+     *
+     * @param realmId The id and name of the realm
+     * @param model The provider component of the realm
+     * @return The realm stub
+     */
+    static RealmModel realm(String realmId, ComponentModel model) {
+        return proxy(RealmModel.class, (name, args) -> switch (name) {
+            case "getId", "getName" -> realmId;
+            case "getComponent" -> model.getId().equals(args[0]) ? model : null;
+            case "getComponentsStream" -> args != null && args.length == 2 && UserStorageProvider.class.getName().equals(args[1])
+                    ? Stream.of(model)
+                    : Stream.empty();
+            default -> DEFAULT;
+        });
+    }
+
+    /**
+     * Create an empty configuration scope, like Keycloak passes to {@code init} when the provider is not configured in the server
+     * configuration.
+     *
+     * @return The scope stub
+     */
+    static Config.Scope scope() {
+        return proxy(Config.Scope.class, (name, args) -> DEFAULT);
+    }
+
+    /**
+     * Answers a method call, {@link #DEFAULT} leaves the answer to the default behavior.
+     */
+    private interface Answer {
+        Object answer(String methodName, Object[] args);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Answer answer) {
+        return (T) Proxy.newProxyInstance(KeycloakStubs.class.getClassLoader(), new Class<?>[]{type}, new Handler(type, answer));
+    }
+
+    private record Handler(Class<?> type, Answer answer) implements InvocationHandler {
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                return switch (method.getName()) {
+                    case "equals" -> proxy == args[0];
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    default -> type.getSimpleName() + "Stub";
+                };
+            }
+            var result = answer.answer(method.getName(), args);
+            if (result != DEFAULT) {
+                return result;
+            }
+            if (method.isDefault()) {
+                return InvocationHandler.invokeDefault(proxy, method, args);
+            }
+            return defaultValue(method.getReturnType());
+        }
+
+        private static Object defaultValue(Class<?> returnType) {
+            if (returnType.isPrimitive()) {
+                return PRIMITIVE_DEFAULTS.get(returnType);
+            }
+            if (returnType == Stream.class) {
+                return Stream.empty();
+            }
+            if (returnType == Optional.class) {
+                return Optional.empty();
+            }
+            if (returnType == List.class) {
+                return List.of();
+            }
+            if (returnType.isInterface() && returnType.getName().startsWith("org.keycloak.")) {
+                return proxy(returnType, (name, args) -> DEFAULT);
+            }
+            return null;
+        }
+    }
+}
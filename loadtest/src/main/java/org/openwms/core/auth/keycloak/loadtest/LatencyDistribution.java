@@ -0,0 +1,70 @@
+/*
+ * Copyright 2005-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openwms.core.auth.keycloak.loadtest;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A LatencyDistribution produces the artificial response times of the {@link StubExternalService}. It is defined as text:
+ * <ul>
+ *     <li>{@code fixed:20} always 20 milliseconds</li>
+ *     <li>{@code uniform:5:50} uniformly distributed between 5 and 50 milliseconds</li>
+ *     <li>{@code lognormal:20:150} log-normal distributed with a median of 20 and a 99th percentile of 150 milliseconds</li>
+ * </ul>
+ *
+ * @author Heiko Scherrer
+ */
+interface LatencyDistribution {
+
+    /** The z-score of the 99th percentile of the standard normal distribution. */
+    double Z_99 = 2.326;
+
+    /**
+     * Return the next latency.
+     *
+     * @return The latency in microseconds
+     */
+    long nextMicros();
+
+    /**
+     * Parse the textual definition.
+     *
+     * @param definition The definition like {@code lognormal:20:150}
+     * @return The distribution
+     * @throws IllegalArgumentException In case the definition is invalid
+     */
+    static LatencyDistribution parse(String definition) {
+        var parts = definition.split(":");
+        switch (parts[0]) {
+            case "fixed" -> {
+                var micros = (long) (Double.parseDouble(parts[1]) * 1000);
+                return () -> micros;
+            }
+            case "uniform" -> {
+                var min = (long) (Double.parseDouble(parts[1]) * 1000);
+                var max = (long) (Double.parseDouble(parts[2]) * 1000);
+                return () -> ThreadLocalRandom.current().nextLong(min, max + 1);
+            }
+            case "lognormal" -> {
+                var median = Double.parseDouble(parts[1]) * 1000;
+                var sigma = Math.log(Double.parseDouble(parts[2]) * 1000 / median) / Z_99;
+                var mu = Math.log(median);
+                return () -> (long) Math.exp(mu + sigma * ThreadLocalRandom.current().nextGaussian());
+            }
+            default -> throw new IllegalArgumentException("Unknown latency distribution [%s]".formatted(definition));
+        }
+    }
+}
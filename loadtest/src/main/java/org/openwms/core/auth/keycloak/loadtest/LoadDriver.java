@@ -0,0 +1,157 @@
+/*
+ * Copyright 2005-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openwms.core.auth.keycloak.loadtest;
+
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserCredentialModel;
+import org.openwms.core.auth.keycloak.ExternalUserStorageProviderFactory;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.LongStream;
+
+/**
+ * A LoadDriver simulates logins against the {@link org.openwms.core.auth.keycloak.ExternalUserProvider} like Keycloak does: for each login
+ * a session is opened and a provider is created, the user is looked up by username, the password is validated and provider and session
+ * are closed. The factory must have been initialized by the caller, like Keycloak does at startup. With a target rate the
+ * logins are scheduled at fixed intervals and the latency is measured from the scheduled start, so that a slow provider cannot hide its
+ * queueing delay (coordinated omission). Without a target rate each worker logs in as fast as it can.
+ *
+ * @author Heiko Scherrer
+ */
+class LoadDriver {
+
+    private final ExternalUserStorageProviderFactory factory;
+    private final ComponentModel model;
+    private final KeycloakSessionFactory sessionFactory;
+    private final RealmModel realm;
+    private final int userCount;
+
+    LoadDriver(ExternalUserStorageProviderFactory factory, ComponentModel model, KeycloakSessionFactory sessionFactory, RealmModel realm,
+            int userCount) {
+        this.factory = factory;
+        this.model = model;
+        this.sessionFactory = sessionFactory;
+        this.realm = realm;
+        this.userCount = userCount;
+    }
+
+    /**
+     * Run the load and collect the results of the measurement phase.
+     *
+     * @param concurrency Number of concurrent login threads
+     * @param rate Target logins per second over all threads, 0 for unlimited
+     * @param warmup Duration before the measurement starts
+     * @param duration Duration of the measurement
+     * @param stub The stub to read the external call counters from
+     * @return The report
+     * @throws InterruptedException If interrupted while waiting for the workers
+     */
+    LoadReport run(int concurrency, double rate, Duration warmup, Duration duration, StubExternalService stub) throws InterruptedException {
+        var interval = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / rate) : 0;
+        var start = System.nanoTime();
+        var measureStart = start + warmup.toNanos();
+        var end = measureStart + duration.toNanos();
+        var ticket = new AtomicLong();
+        var failedLogins = new LongAdder();
+        var recorders = new ArrayList<Recorder>();
+        var executor = Executors.newFixedThreadPool(concurrency);
+        for (var i = 0; i < concurrency; i++) {
+            var recorder = new Recorder();
+            recorders.add(recorder);
+            executor.execute(() -> {
+                while (!Thread.currentThread().isInterrupted()) {
+                    var intended = interval > 0 ? start + ticket.getAndIncrement() * interval : System.nanoTime();
+                    if (intended >= end) {
+                        return;
+                    }
+                    sleepUntil(intended);
+                    var success = login();
+                    if (intended >= measureStart) {
+                        recorder.record((System.nanoTime() - intended) / 1000);
+                        if (!success) {
+                            failedLogins.increment();
+                        }
+                    }
+                }
+            });
+        }
+        var threads = ManagementFactory.getThreadMXBean();
+        TimeUnit.NANOSECONDS.sleep(Math.max(0, measureStart - System.nanoTime()));
+        threads.resetPeakThreadCount();
+        var findCalls = stub.getFindCalls();
+        var validateCalls = stub.getValidateCalls();
+        var failedCalls = stub.getFailedCalls();
+        executor.shutdown();
+        executor.awaitTermination(duration.toNanos() + TimeUnit.MINUTES.toNanos(1), TimeUnit.NANOSECONDS);
+        var elapsed = Duration.ofNanos(System.nanoTime() - measureStart);
+        var latencies = recorders.stream().flatMapToLong(Recorder::stream).toArray();
+        return new LoadReport(latencies, elapsed, failedLogins.sum(), stub.getFindCalls() - findCalls, stub.getValidateCalls() - validateCalls,
+                stub.getFailedCalls() - failedCalls, threads.getPeakThreadCount());
+    }
+
+    private boolean login() {
+        try (var session = sessionFactory.create()) {
+            var provider = factory.create(session, model);
+            try {
+                var user = provider.getUserByUsername(realm, "user" + ThreadLocalRandom.current().nextInt(userCount));
+                return user != null && provider.isValid(realm, user, UserCredentialModel.password(StubExternalService.PASSWORD));
+            } finally {
+                provider.close();
+            }
+        }
+    }
+
+    private static void sleepUntil(long nanoTime) {
+        var delay = nanoTime - System.nanoTime();
+        if (delay > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Collects the latencies of one worker thread without synchronization.
+     */
+    private static final class Recorder {
+
+        private long[] values = new long[1024];
+        private int size;
+
+        void record(long micros) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = micros;
+        }
+
+        LongStream stream() {
+            return Arrays.stream(values, 0, size);
+        }
+    }
+}
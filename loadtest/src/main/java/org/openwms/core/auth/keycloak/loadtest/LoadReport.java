@@ -0,0 +1,79 @@
+/*
+ * Copyright 2005-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openwms.core.auth.keycloak.loadtest;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * A LoadReport summarizes the latencies and counters of one load test run.
+ *
+ * @author Heiko Scherrer
+ */
+final class LoadReport {
+
+    private final long[] latenciesMicros;
+    private final Duration elapsed;
+    private final long failedLogins;
+    private final long findCalls;
+    private final long validateCalls;
+    private final long failedCalls;
+    private final int peakThreads;
+
+    LoadReport(long[] latenciesMicros, Duration elapsed, long failedLogins, long findCalls, long validateCalls, long failedCalls,
+            int peakThreads) {
+        this.latenciesMicros = latenciesMicros;
+        Arrays.sort(this.latenciesMicros);
+        this.elapsed = elapsed;
+        this.failedLogins = failedLogins;
+        this.findCalls = findCalls;
+        this.validateCalls = validateCalls;
+        this.failedCalls = failedCalls;
+        this.peakThreads = peakThreads;
+    }
+
+    private double percentileMillis(double percentile) {
+        if (latenciesMicros.length == 0) {
+            return 0;
+        }
+        var index = (int) Math.ceil(percentile / 100 * latenciesMicros.length) - 1;
+        return latenciesMicros[Math.max(0, index)] / 1000d;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * A human-readable table.
+     */
+    @Override
+    public String toString() {
+        var seconds = Math.max(elapsed.toMillis(), 1) / 1000d;
+        return """
+                Logins            : %d (%d failed)
+                Throughput        : %.1f logins/s
+                Latency p50       : %.2f ms
+                Latency p95       : %.2f ms
+                Latency p99       : %.2f ms
+                Latency max       : %.2f ms
+                External finds    : %d (%.1f/s)
+                External validates: %d (%.1f/s)
+                External failures : %d
+                Peak JVM threads  : %d
+                """.formatted(latenciesMicros.length, failedLogins, latenciesMicros.length / seconds, percentileMillis(50),
+                percentileMillis(95), percentileMillis(99), percentileMillis(100), findCalls, findCalls / seconds, validateCalls,
+                validateCalls / seconds, failedCalls, peakThreads);
+    }
+}
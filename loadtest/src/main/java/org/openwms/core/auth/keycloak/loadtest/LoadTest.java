@@ -0,0 +1,129 @@
+/*
+ * Copyright 2005-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openwms.core.auth.keycloak.loadtest;
+
+import org.apache.http.impl.client.HttpClients;
+import org.keycloak.Config;
+import org.keycloak.common.util.MultivaluedHashMap;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.utils.PostMigrationEvent;
+import org.openwms.core.auth.keycloak.ExternalUserStorageProviderFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A LoadTest starts the {@link StubExternalService}, configures the provider against it and runs the {@link LoadDriver}. The factory goes
+ * through the same lifecycle as in Keycloak: {@code init}, {@code postInit}, the post migration event at startup and {@code close} at the
+ * end. Everything runs in one JVM and offline. Options are passed as {@code --name=value}, all provider configuration properties can be overridden with
+ * {@code --provider.<name>=<value>}, like {@code --provider.cacheTtlSeconds=0}.
+ *
+ * <pre>
+ * --users=10000                    Number of users known by the stub
+ * --latency=lognormal:20:150       Response time distribution of the stub, see LatencyDistribution
+ * --error-rate=0                   Share of stub requests answered with 500
+ * --outage-every=0                 Seconds between two stub outages, 0 for none
+ * --outage-duration=0              Seconds each stub outage lasts
+ * --stub-threads=256               Threads of the stub
+ * --stub-cbor=false                Whether the stub accepts and answers CBOR, otherwise CBOR requests are rejected with 415
+ * --concurrency=32                 Concurrent login threads
+ * --rate=0                         Target logins per second, 0 for unlimited
+ * --warmup=10                      Seconds before the measurement starts
+ * --duration=60                    Seconds of measurement
+ * --pool-per-route=64              Max HTTP connections per route, like Keycloak's default
+ * --pool-total=128                 Max HTTP connections in total, like Keycloak's default
+ * </pre>
+ *
+ * @author Heiko Scherrer
+ */
+public final class LoadTest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoadTest.class);
+    private static final String REALM_ID = "loadtest";
+
+    private LoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        var options = parse(args);
+        var users = Integer.parseInt(options.getOrDefault("users", "10000"));
+        try (var stub = new StubExternalService(
+                users,
+                LatencyDistribution.parse(options.getOrDefault("latency", "lognormal:20:150")),
+                Double.parseDouble(options.getOrDefault("error-rate", "0")),
+                Duration.ofSeconds(Long.parseLong(options.getOrDefault("outage-every", "0"))),
+                Duration.ofSeconds(Long.parseLong(options.getOrDefault("outage-duration", "0"))),
+                Integer.parseInt(options.getOrDefault("stub-threads", "256")),
+                Boolean.parseBoolean(options.getOrDefault("stub-cbor", "false")));
+             var httpClient = HttpClients.custom()
+                     .setMaxConnPerRoute(Integer.parseInt(options.getOrDefault("pool-per-route", "64")))
+                     .setMaxConnTotal(Integer.parseInt(options.getOrDefault("pool-total", "128")))
+                     .build()) {
+
+            var config = new MultivaluedHashMap<String, String>();
+            config.putSingle("restSchema", "http");
+            config.putSingle("serviceHostname", "localhost");
+            config.putSingle("servicePort", String.valueOf(stub.getPort()));
+            options.forEach((k, v) -> {
+                if (k.startsWith("provider.")) {
+                    config.putSingle(k.substring("provider.".length()), v);
+                }
+            });
+            var model = new ComponentModel();
+            model.setId(REALM_ID + "-component");
+            model.setName(REALM_ID);
+            model.setProviderId(ExternalUserStorageProviderFactory.PROVIDER_ID);
+            model.setParentId(REALM_ID);
+            model.setConfig(config);
+
+            var realm = KeycloakStubs.realm(REALM_ID, model);
+            var sessionFactory = KeycloakStubs.sessionFactory(httpClient, realm, model);
+            var factory = new ExternalUserStorageProviderFactory();
+            Config.init(new Config.SystemPropertiesConfigProvider());
+            factory.init(KeycloakStubs.scope());
+            factory.postInit(sessionFactory);
+            sessionFactory.publish(new PostMigrationEvent(sessionFactory));
+            try {
+                var driver = new LoadDriver(factory, model, sessionFactory, realm, users);
+                LOGGER.info("Running load test with options [{}]", options);
+                var report = driver.run(
+                        Integer.parseInt(options.getOrDefault("concurrency", "32")),
+                        Double.parseDouble(options.getOrDefault("rate", "0")),
+                        Duration.ofSeconds(Long.parseLong(options.getOrDefault("warmup", "10"))),
+                        Duration.ofSeconds(Long.parseLong(options.getOrDefault("duration", "60"))),
+                        stub);
+                System.out.println(report);
+            } finally {
+                factory.close();
+            }
+        }
+    }
+
+    static Map<String, String> parse(String[] args) {
+        var options = new HashMap<String, String>();
+        for (var arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Options must be passed as --name=value but was [%s]".formatted(arg));
+            }
+            var separator = arg.indexOf('=');
+            options.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+        return options;
+    }
+}
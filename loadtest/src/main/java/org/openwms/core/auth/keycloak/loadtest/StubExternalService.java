@@ -0,0 +1,208 @@
+/*
+ * Copyright 2005-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openwms.core.auth.keycloak.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.openwms.core.auth.keycloak.api.ExternalUser;
+import org.openwms.core.auth.keycloak.api.FindUserRequest;
+import org.openwms.core.auth.keycloak.api.FindUserResponse;
+import org.openwms.core.auth.keycloak.api.ValidateRequest;
+import org.openwms.core.auth.keycloak.api.WireFormat;
+import org.openwms.core.auth.keycloak.api.WireFormatCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A StubExternalService is an in-process implementation of the Find User and Validate User endpoints of the external service. It knows
+ * the users {@code user0} to {@code user<n-1>}, each with the password {@value #PASSWORD} and the email {@code user<i>@example.com}.
+ * Responses are delayed by a {@link LatencyDistribution}, a share of requests fails with {@code 500-INTERNAL_SERVER_ERROR} and during
+ * periodic outages all requests are answered with {@code 503-SERVICE_UNAVAILABLE}. Unless CBOR is enabled, only JSON is understood and
+ * other request bodies are rejected with {@code 415-UNSUPPORTED_MEDIA_TYPE} like a service that has not opted in to a binary format. With
+ * CBOR enabled, requests are decoded as announced by their {@code Content-Type} and responses are encoded in CBOR if the client accepts
+ * it, so that both wire formats can be compared under load.
+ *
+ * @author Heiko Scherrer
+ */
+class StubExternalService implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StubExternalService.class);
+    static final String PASSWORD = "password";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final int userCount;
+    private final LatencyDistribution latency;
+    private final double errorRate;
+    private final long outageEveryNanos;
+    private final long outageDurationNanos;
+    private final boolean cbor;
+    private final long startedAt = System.nanoTime();
+    private final LongAdder findCalls = new LongAdder();
+    private final LongAdder validateCalls = new LongAdder();
+    private final LongAdder failedCalls = new LongAdder();
+
+    /**
+     * Start the stub on a random local port.
+     *
+     * @param userCount Number of known users
+     * @param latency The response time distribution
+     * @param errorRate The share of requests between 0 and 1 that fail
+     * @param outageEvery The period of outages, {@link Duration#ZERO} for none
+     * @param outageDuration The duration of each outage
+     * @param threads Number of threads serving requests
+     * @param cbor Whether CBOR is accepted and answered besides JSON
+     * @throws IOException In case the server could not be started
+     */
+    StubExternalService(int userCount, LatencyDistribution latency, double errorRate, Duration outageEvery, Duration outageDuration,
+            int threads, boolean cbor) throws IOException {
+        this.cbor = cbor;
+        this.userCount = userCount;
+        this.latency = latency;
+        this.errorRate = errorRate;
+        this.outageEveryNanos = outageEvery.toNanos();
+        this.outageDurationNanos = outageDuration.toNanos();
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        this.server.setExecutor(executor);
+        this.server.createContext("/auth/", this::handle);
+        this.server.start();
+        LOGGER.info("Stub external service started on port [{}] with [{}] users", getPort(), userCount);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            var path = exchange.getRequestURI().getPath();
+            var validate = path.endsWith("/users/validate");
+            (validate ? validateCalls : findCalls).increment();
+            sleepMicros(latency.nextMicros());
+            if (isInOutage()) {
+                failedCalls.increment();
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+            if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                failedCalls.increment();
+                exchange.sendResponseHeaders(500, -1);
+                return;
+            }
+            var contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            var requestCodec = WireFormatCodec.forContentType(contentType);
+            if (contentType == null || !contentType.startsWith(requestCodec.getMediaType())
+                    || (!cbor && requestCodec != WireFormatCodec.of(WireFormat.JSON))) {
+                exchange.sendResponseHeaders(415, -1);
+                return;
+            }
+            var responseCodec = cbor
+                    ? WireFormatCodec.forAccept(exchange.getRequestHeaders().getFirst("Accept"))
+                    : WireFormatCodec.of(WireFormat.JSON);
+            if (validate) {
+                var request = requestCodec.decode(exchange.getRequestBody(), ValidateRequest.class);
+                var valid = indexOf(request.username()) >= 0 && PASSWORD.equals(new String(request.password()));
+                exchange.sendResponseHeaders(valid ? 200 : 400, -1);
+            } else if (path.endsWith("/users")) {
+                var request = requestCodec.decode(exchange.getRequestBody(), FindUserRequest.class);
+                var index = request.getUsername() != null
+                        ? indexOf(request.getUsername())
+                        : indexOf(request.getEmail() == null ? null : request.getEmail().split("@")[0]);
+                if (index < 0) {
+                    exchange.sendResponseHeaders(404, -1);
+                    return;
+                }
+                var body = responseCodec.encode(response(index));
+                exchange.getResponseHeaders().set("Content-Type", responseCodec.getMediaType());
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            } else {
+                exchange.sendResponseHeaders(404, -1);
+            }
+        }
+    }
+
+    private boolean isInOutage() {
+        return outageEveryNanos > 0 && (System.nanoTime() - startedAt) % outageEveryNanos >= outageEveryNanos - outageDurationNanos;
+    }
+
+    private int indexOf(String username) {
+        if (username == null || !username.startsWith("user")) {
+            return -1;
+        }
+        try {
+            var index = Integer.parseInt(username.substring(4));
+            return index < userCount ? index : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static FindUserResponse response(int index) {
+        var user = new ExternalUser();
+        user.setId(String.valueOf(index));
+        user.setUsername("user" + index);
+        user.setFirstName("First" + index);
+        user.setLastName("Last" + index);
+        user.setEmail("user" + index + "@example.com");
+        var response = new FindUserResponse();
+        response.setExternalUser(user);
+        return response;
+    }
+
+    private static void sleepMicros(long micros) {
+        try {
+            TimeUnit.MICROSECONDS.sleep(micros);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Stop the server immediately.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /*~---------------- Accessors ------------- */
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    long getFindCalls() {
+        return findCalls.sum();
+    }
+
+    long getValidateCalls() {
+        return validateCalls.sum();
+    }
+
+    long getFailedCalls() {
+        return failedCalls.sum();
+    }
+}
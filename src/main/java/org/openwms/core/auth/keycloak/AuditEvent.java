@@ -0,0 +1,65 @@
+/*
+ * Copyright 2005-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openwms.core.auth.keycloak;
+
+/**
+ * A AuditEvent is one authentication relevant action of the provider, recorded by the {@link AuditPipeline}. It only holds references to
+ * values that exist anyway, so that recording an event allocates a single small object on the login path.
+ *
+ * @param timestamp Time in millis the action finished
+ * @param type What has been done
+ * @param outcome The result of the action
+ * @param realmId The realm id
+ * @param subject The username or email the action was about, unmasked
+ * @param detail Additional information like the cache outcome of a lookup, or {@literal null}
+ * @param durationMicros How long the action took
+ * @author Heiko Scherrer
+ */
+record AuditEvent(long timestamp, Type type, Outcome outcome, String realmId, String subject, String detail, long durationMicros) {
+
+    /**
+     * The kind of action.
+     */
+    enum Type {
+        /** A user has been looked up by username or email. */
+        LOOKUP,
+        /** The credentials of a user have been validated. */
+        VALIDATE,
+        /** The roles, groups and attributes of a user have been loaded. */
+        AUTHORIZATION
+    }
+
+    /**
+     * The result of an action.
+     */
+    enum Outcome {
+        SUCCESS,
+        NOT_FOUND,
+        REJECTED,
+        THROTTLED,
+        ERROR
+    }
+
+    /**
+     * Return a copy with another subject.
+     *
+     * @param subject The new subject
+     * @return The copy
+     */
+    AuditEvent withSubject(String subject) {
+        return new AuditEvent(timestamp, type, outcome, realmId, subject, detail, durationMicros);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2005-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openwms.core.auth.keycloak;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.HexFormat;
+
+/**
+ * A AuditMasking defines how the subject of an {@link AuditEvent} is written. Masking is done by the writer of the {@link AuditPipeline}
+ * and not on the login path.
+ *
+ * @author Heiko Scherrer
+ */
+enum AuditMasking {
+
+    /** The subject is written as is. */
+    NONE {
+        @Override
+        String mask(String subject, SecretKey hashKey) {
+            return subject;
+        }
+    },
+    /** Only the first character and the domain of an email address are kept, like {@code j***@example.com}. */
+    PARTIAL {
+        @Override
+        String mask(String subject, SecretKey hashKey) {
+            if (subject == null || subject.isEmpty()) {
+                return subject;
+            }
+            var at = subject.indexOf('@');
+            return subject.charAt(0) + "***" + (at > 0 ? subject.substring(at) : "");
+        }
+    },
+    /**
+     * The subject is replaced by the first 16 hex digits of its HMAC-SHA256 with the configured secret, so that events of one user can
+     * still be correlated but the subject cannot be found by hashing a list of known usernames.
+     */
+    HASH {
+        @Override
+        String mask(String subject, SecretKey hashKey) {
+            if (subject == null) {
+                return null;
+            }
+            try {
+                var mac = Mac.getInstance(HMAC_ALGORITHM);
+                mac.init(hashKey);
+                return HexFormat.of().formatHex(mac.doFinal(subject.getBytes(StandardCharsets.UTF_8)), 0, 8);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Failed to hash the subject with [%s]".formatted(HMAC_ALGORITHM), e);
+            }
+        }
+    };
+
+    /** The algorithm of the {@link #HASH} masking. */
+    static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    /**
+     * Mask the given subject.
+     *
+     * @param subject The username or email, may be {@literal null}
+     * @param hashKey The secret of the {@link #HASH} masking, {@literal null} for the others
+     * @return The masked subject
+     */
+    abstract String mask(String subject, SecretKey hashKey);
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2005-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openwms.core.auth.keycloak;
+
+import io.micrometer.core.instrument.Counter;
+import org.openwms.core.auth.keycloak.AuditEvent.Outcome;
+import org.openwms.core.auth.keycloak.AuditEvent.Type;
+import org.openwms.core.auth.keycloak.ExternalProviderConfig.AuditSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A AuditPipeline records the {@link AuditEvent}s of one component without blocking the login path. Events are put into a bounded
+ * {@link AuditRingBuffer} and written in batches to the {@link AuditSink} by a background thread, that also masks the subjects. The writer
+ * parks while the buffer is empty and is woken up by the next recorded event, so an idle pipeline costs no CPU. Successful actions are
+ * sampled with the configured rate, all other outcomes are always recorded. If the writer cannot keep up and the buffer is full, events are
+ * dropped, counted and reported at most once a minute.
+ *
+ * @author Heiko Scherrer
+ */
+class AuditPipeline {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AuditPipeline.class);
+    private static final int CAPACITY = 8192;
+    private static final int MAX_BATCH = 512;
+    private static final long DROP_REPORT_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final long IDLE_PARK_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+    private final String name;
+    private final AuditRingBuffer buffer;
+    private final AuditSink sink;
+    private final AuditSettings settings;
+    private final double sampleRate;
+    private final Counter droppedCounter;
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final Thread writer;
+    private volatile boolean running = true;
+    private volatile boolean sleeping;
+    private long reportedDrops;
+    private long lastDropReport;
+
+    /*~---------------- Constructors ------------- */
+    /**
+     * Create and start a pipeline.
+     *
+     * @param name The name of the component, used for the writer thread and in log messages
+     * @param sink Where to write the events to
+     * @param settings How subjects are masked and the ratio of successful actions that are recorded
+     * @param droppedCounter Counts dropped events
+     */
+    AuditPipeline(String name, AuditSink sink, AuditSettings settings, Counter droppedCounter) {
+        this.name = name;
+        this.buffer = new AuditRingBuffer(CAPACITY);
+        this.sink = sink;
+        this.settings = settings;
+        this.sampleRate = settings.sampleRate();
+        this.droppedCounter = droppedCounter;
+        this.writer = new Thread(this::run, ExternalUserStorageProviderFactory.PROVIDER_ID + "-audit");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    private AuditPipeline() {
+        this.name = null;
+        this.buffer = null;
+        this.sink = null;
+        this.settings = null;
+        this.sampleRate = 0;
+        this.droppedCounter = null;
+        this.writer = null;
+        this.running = false;
+    }
+
+    /**
+     * Return a pipeline that records nothing.
+     *
+     * @return The disabled pipeline
+     */
+    static AuditPipeline disabled() {
+        return new AuditPipeline();
+    }
+
+    /*~---------------- Methods ------------- */
+    /**
+     * Record an action, never blocks. Actions recorded after the pipeline has been closed, e.g. by requests that were in flight while the
+     * configuration changed, are counted as dropped.
+     *
+     * @param type What has been done
+     * @param outcome The result of the action
+     * @param realmId The realm id
+     * @param subject The username or email the action was about
+     * @param detail Additional information or {@literal null}
+     * @param startNanos The {@link System#nanoTime()} when the action started
+     */
+    void record(Type type, Outcome outcome, String realmId, String subject, String detail, long startNanos) {
+        if (writer == null || (outcome == Outcome.SUCCESS && sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate)) {
+            return;
+        }
+        if (!running) {
+            dropped.increment();
+            droppedCounter.increment();
+            return;
+        }
+        var event = new AuditEvent(System.currentTimeMillis(), type, outcome, realmId, subject, detail,
+                (System.nanoTime() - startNanos) / 1000);
+        if (!buffer.offer(event)) {
+            dropped.increment();
+            droppedCounter.increment();
+        } else if (sleeping) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private void run() {
+        var batch = new ArrayList<AuditEvent>(MAX_BATCH);
+        while (running || !buffer.isEmpty()) {
+            if (buffer.drainTo(batch, MAX_BATCH) == 0) {
+                // Announce the park before checking the buffer again, a producer that offered in between sees the flag and unparks
+                sleeping = true;
+                if (running && buffer.isEmpty()) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+                sleeping = false;
+            } else {
+                write(batch);
+                batch.clear();
+            }
+            reportDrops();
+        }
+        sink.close();
+    }
+
+    private void write(ArrayList<AuditEvent> batch) {
+        if (settings.masking() != AuditMasking.NONE) {
+            batch.replaceAll(e -> e.withSubject(settings.mask(e.subject())));
+        }
+        try {
+            sink.write(batch);
+            written.add(batch.size());
+        } catch (Exception e) {
+            LOGGER.error("Failed to write [{}] audit events of component [{}] with message [{}]", batch.size(), name, e.getMessage());
+        }
+    }
+
+    private void reportDrops() {
+        var drops = dropped.sum();
+        var now = System.currentTimeMillis();
+        if (drops > reportedDrops && now - lastDropReport >= DROP_REPORT_INTERVAL_MILLIS) {
+            LOGGER.warn("Dropped [{}] audit events of component [{}] because the audit buffer was full", drops - reportedDrops, name);
+            reportedDrops = drops;
+            lastDropReport = now;
+        }
+    }
+
+    /**
+     * Stop accepting events, write the buffered ones and close the sink.
+     */
+    void close() {
+        if (writer == null) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*~---------------- Accessors ------------- */
+    boolean isEnabled() {
+        return writer != null;
+    }
+
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    long getWritten() {
+        return written.sum();
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2005-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openwms.core.auth.keycloak;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A AuditRingBuffer is a bounded, lock-free ring buffer with many producers and a single consumer. Producers claim a slot by moving the
+ * tail and never block: if the buffer is full the event is rejected. The consumer takes published events in order and frees each slot
+ * before it moves the head, so that a producer never overwrites an event that has not been consumed.
+ *
+ * @author Heiko Scherrer
+ */
+class AuditRingBuffer {
+
+    private final AtomicReferenceArray<AuditEvent> slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+
+    /*~---------------- Constructors ------------- */
+    /**
+     * Create a buffer.
+     *
+     * @param capacity The number of slots, must be a power of two
+     */
+    AuditRingBuffer(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two but is [%s]".formatted(capacity));
+        }
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+    }
+
+    /*~---------------- Methods ------------- */
+    /**
+     * Add an event, never blocks.
+     *
+     * @param event The event
+     * @return {@literal false} if the buffer is full and the event has been rejected
+     */
+    boolean offer(AuditEvent event) {
+        long claimed;
+        do {
+            claimed = tail.get();
+            if (claimed - head >= slots.length()) {
+                return false;
+            }
+        } while (!tail.compareAndSet(claimed, claimed + 1));
+        slots.lazySet((int) (claimed & mask), event);
+        return true;
+    }
+
+    /**
+     * Move published events into the {@code target}, must only be called by the single consumer.
+     *
+     * @param target Where to add the events to
+     * @param max The maximum number of events to move
+     * @return The number of moved events
+     */
+    int drainTo(List<AuditEvent> target, int max) {
+        var current = head;
+        var count = 0;
+        while (count < max) {
+            var index = (int) (current & mask);
+            var event = slots.get(index);
+            if (event == null) {
+                break;
+            }
+            target.add(event);
+            slots.lazySet(index, null);
+            current++;
+            count++;
+        }
+        head = current;
+        return count;
+    }
+
+    /**
+     * Check whether all claimed slots have been consumed.
+     *
+     * @return {@literal true} if empty
+     */
+    boolean isEmpty() {
+        return head == tail.get();
+    }
+}
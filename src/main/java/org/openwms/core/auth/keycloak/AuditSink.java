@@ -0,0 +1,54 @@
+/*
+ * Copyright 2005-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openwms.core.auth.keycloak;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A AuditSink is where the {@link AuditPipeline} writes the recorded {@link AuditEvent}s to. A sink is only called by the single writer
+ * thread of a pipeline and does not need to be thread-safe.
+ *
+ * @author Heiko Scherrer
+ */
+interface AuditSink {
+
+    /**
+     * The supported sinks.
+     */
+    enum Type {
+        /** Auditing is disabled. */
+        NONE,
+        /** Events are logged by the logger {@code org.openwms.core.auth.keycloak.audit}. */
+        LOG,
+        /** Events are appended as JSON lines to a file. */
+        FILE
+    }
+
+    /**
+     * Write a batch of events.
+     *
+     * @param events The events with masked subjects
+     * @throws IOException In case writing failed
+     */
+    void write(List<AuditEvent> events) throws IOException;
+
+    /**
+     * Release all resources.
+     */
+    default void close() {
+    }
+}
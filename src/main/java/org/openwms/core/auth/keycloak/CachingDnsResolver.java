@@ -0,0 +1,82 @@
+/*
+ * Copyright 2005-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openwms.core.auth.keycloak;
+
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A CachingDnsResolver caches resolved addresses for a bounded time, independent of the JVM wide DNS cache settings. If a host cannot be
+ * resolved anymore, the last known addresses are used for at most five minutes after they expired, so that a short DNS
+ * outage does not break logins but a service that moved is not called at its former address forever. Only the host of the external
+ * service is resolved by one instance, hence the cache is not bounded in size.
+ *
+ * @author Heiko Scherrer
+ */
+class CachingDnsResolver implements DnsResolver {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CachingDnsResolver.class);
+    /** How long expired addresses are used if the host cannot be resolved. */
+    private static final long MAX_STALE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private final long ttlMillis;
+    private final Map<String, Entry> addresses = new ConcurrentHashMap<>();
+
+    private record Entry(InetAddress[] addresses, long resolvedAt) {
+    }
+
+    /*~---------------- Constructors ------------- */
+    /**
+     * Create a resolver that caches addresses for the given {@code ttl}.
+     *
+     * @param ttl The time-to-live of resolved addresses
+     */
+    CachingDnsResolver(Duration ttl) {
+        this.ttlMillis = ttl.toMillis();
+    }
+
+    /*~---------------- Methods ------------- */
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        var entry = addresses.get(host);
+        if (entry != null && System.currentTimeMillis() - entry.resolvedAt() <= ttlMillis) {
+            return entry.addresses().clone();
+        }
+        try {
+            var resolved = SystemDefaultDnsResolver.INSTANCE.resolve(host);
+            addresses.put(host, new Entry(resolved, System.currentTimeMillis()));
+            return resolved.clone();
+        } catch (UnknownHostException e) {
+            if (entry == null || System.currentTimeMillis() - entry.resolvedAt() > ttlMillis + MAX_STALE_MILLIS) {
+                throw e;
+            }
+            LOGGER.warn("Host [{}] cannot be resolved, using the last known addresses: [{}]", host, e.getMessage());
+            return entry.addresses().clone();
+        }
+    }
+}
@@ -27,21 +27,23 @@ public final class CombinedUserKey implements Serializable {
 
     private final String userProperty;
     private final String realmId;
+    private final int hash;
 
     public CombinedUserKey(String userProperty, String realmId) {
         this.userProperty = userProperty;
         this.realmId = realmId;
+        this.hash = Objects.hash(userProperty, realmId);
     }
 
     @Override
     public boolean equals(Object o) {
         if (o == null || getClass() != o.getClass()) return false;
         var that = (CombinedUserKey) o;
-        return Objects.equals(userProperty, that.userProperty) && Objects.equals(realmId, that.realmId);
+        return hash == that.hash && Objects.equals(userProperty, that.userProperty) && Objects.equals(realmId, that.realmId);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(userProperty, realmId);
+        return hash;
     }
 }
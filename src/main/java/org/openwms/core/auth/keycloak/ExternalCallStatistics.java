@@ -0,0 +1,144 @@
+/*
+ * Copyright 2005-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openwms.core.auth.keycloak;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A ExternalCallStatistics counts the calls of one component to the external service. Besides the totals since the start, it keeps the
+ * number of calls and failures of the last minute in per-second buckets, so that a current error rate can be reported without a metrics
+ * backend. A failure is a call that threw an exception or has been answered with a server error.
+ *
+ * @author Heiko Scherrer
+ */
+class ExternalCallStatistics {
+
+    private static final int WINDOW_SECONDS = 60;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final Bucket[] buckets = new Bucket[WINDOW_SECONDS];
+    private volatile String lastFailure;
+    private volatile long lastFailureAt;
+
+    /**
+     * The calls and failures of one second.
+     */
+    private static final class Bucket {
+        private volatile long second;
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+    }
+
+    /**
+     * A consistent view on the statistics.
+     *
+     * @param inFlight Calls currently waiting for the external service
+     * @param calls All calls since the start
+     * @param failures All failed calls since the start
+     * @param recentCalls Calls in the last minute
+     * @param recentFailures Failed calls in the last minute
+     * @param lastFailure Reason of the last failure or {@literal null}
+     * @param lastFailureAt Time in millis of the last failure or 0
+     */
+    record Snapshot(int inFlight, long calls, long failures, long recentCalls, long recentFailures, String lastFailure, long lastFailureAt) {
+    }
+
+    /*~---------------- Constructors ------------- */
+    ExternalCallStatistics() {
+        for (var i = 0; i < buckets.length; i++) {
+            buckets[i] = new Bucket();
+        }
+    }
+
+    /*~---------------- Methods ------------- */
+    /**
+     * Mark the start of a call.
+     */
+    void started() {
+        inFlight.incrementAndGet();
+    }
+
+    /**
+     * Mark the end of a call that has been answered by the external service.
+     *
+     * @param statusCode The HTTP status code of the response
+     */
+    void finished(int statusCode) {
+        if (statusCode >= 500) {
+            record("HTTP status " + statusCode);
+        } else {
+            record(null);
+        }
+    }
+
+    /**
+     * Mark the end of a call that failed with an exception.
+     *
+     * @param e The exception
+     */
+    void failed(Exception e) {
+        record(e.getClass().getSimpleName() + ": " + e.getMessage());
+    }
+
+    private void record(String failure) {
+        inFlight.decrementAndGet();
+        calls.increment();
+        var bucket = currentBucket();
+        bucket.calls.increment();
+        if (failure != null) {
+            failures.increment();
+            bucket.failures.increment();
+            lastFailure = failure;
+            lastFailureAt = System.currentTimeMillis();
+        }
+    }
+
+    private Bucket currentBucket() {
+        var second = System.currentTimeMillis() / 1000;
+        var bucket = buckets[(int) (second % WINDOW_SECONDS)];
+        if (bucket.second != second) {
+            synchronized (bucket) {
+                if (bucket.second != second) {
+                    bucket.calls.reset();
+                    bucket.failures.reset();
+                    bucket.second = second;
+                }
+            }
+        }
+        return bucket;
+    }
+
+    /**
+     * Take a snapshot of the current statistics.
+     *
+     * @return The snapshot
+     */
+    Snapshot snapshot() {
+        var oldest = System.currentTimeMillis() / 1000 - WINDOW_SECONDS;
+        long recentCalls = 0;
+        long recentFailures = 0;
+        for (var bucket : buckets) {
+            if (bucket.second > oldest) {
+                recentCalls += bucket.calls.sum();
+                recentFailures += bucket.failures.sum();
+            }
+        }
+        return new Snapshot(inFlight.get(), calls.sum(), failures.sum(), recentCalls, recentFailures, lastFailure, lastFailureAt);
+    }
+}
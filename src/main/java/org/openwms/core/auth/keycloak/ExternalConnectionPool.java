@@ -0,0 +1,215 @@
+/*
+ * Copyright 2005-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openwms.core.auth.keycloak;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.DefaultHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.ssl.SSLContexts;
+import org.keycloak.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A ExternalConnectionPool is the connection pool of one component to the external service, used instead of the shared pool of Keycloak
+ * if warm connections are configured. It keeps a minimum number of connections open, so that logins after startup or idle periods do not
+ * pay for the DNS lookup and the TCP and TLS handshakes. All connections share one {@link SSLContext}, hence new connections resume the
+ * TLS session of former ones instead of doing a full handshake. Addresses are resolved by a {@link CachingDnsResolver}. The pool only
+ * applies the Keycloak truststore, other settings of the HTTP client of Keycloak like proxy mappings or a client keystore are not
+ * supported, see {@link #unsupportedSettings(Config.Scope)}.
+ *
+ * @author Heiko Scherrer
+ */
+class ExternalConnectionPool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExternalConnectionPool.class);
+    /** Connections idle for longer are validated before they are leased. */
+    private static final int VALIDATE_AFTER_INACTIVITY_MILLIS = 2000;
+    /** How long a warmed connection is kept in the pool, it is renewed by each warm-up. */
+    static final long KEEP_WARM_SECONDS = 60;
+    /** Environment variables Keycloak takes a proxy from if no proxy mappings are configured. */
+    private static final List<String> PROXY_VARIABLES = List.of("HTTPS_PROXY", "https_proxy", "HTTP_PROXY", "http_proxy");
+
+    private final HttpRoute route;
+    private final int warmConnections;
+    private final int timeoutMillis;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+
+    /*~---------------- Constructors ------------- */
+    /**
+     * Create a pool to the external service of the given configuration.
+     *
+     * @param config The configuration of the component
+     * @param truststore The truststore of Keycloak or {@literal null} to use the truststore of the JVM
+     */
+    ExternalConnectionPool(ExternalProviderConfig config, KeyStore truststore) {
+        var settings = config.getConnectionSettings();
+        var serviceHost = config.getServiceHost();
+        this.route = new HttpRoute(serviceHost, null, "https".equals(serviceHost.getSchemeName()));
+        this.warmConnections = settings.warmConnections();
+        this.timeoutMillis = config.getRequestConfig().getConnectTimeout();
+        var registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", new SSLConnectionSocketFactory(sslContext(truststore), new DefaultHostnameVerifier()))
+                .build();
+        this.connectionManager = new PoolingHttpClientConnectionManager(registry, null, null,
+                new CachingDnsResolver(settings.dnsCacheTtl()), -1, TimeUnit.MILLISECONDS);
+        this.connectionManager.setMaxTotal(settings.maxConnections());
+        this.connectionManager.setDefaultMaxPerRoute(settings.maxConnections());
+        this.connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MILLIS);
+        this.httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(config.getRequestConfig())
+                .disableCookieManagement()
+                .disableConnectionState()
+                .build();
+    }
+
+    private static SSLContext sslContext(KeyStore truststore) {
+        if (truststore == null) {
+            return SSLContexts.createSystemDefault();
+        }
+        try {
+            return SSLContexts.custom().loadTrustMaterial(truststore, null).build();
+        } catch (GeneralSecurityException e) {
+            LOGGER.warn("Failed to use the Keycloak truststore, using the truststore of the JVM: [{}]", e.getMessage());
+            return SSLContexts.createSystemDefault();
+        }
+    }
+
+    /*~---------------- Methods ------------- */
+    /**
+     * Return the settings of the HTTP client of Keycloak that a pool would bypass, because it connects directly and only with the Keycloak
+     * truststore.
+     *
+     * @param httpClientConfig The configuration of the default {@code connectionsHttpClient} provider of Keycloak
+     * @return The names of the configured settings, empty if a pool connects like the HTTP client of Keycloak
+     */
+    static List<String> unsupportedSettings(Config.Scope httpClientConfig) {
+        var settings = new ArrayList<String>();
+        var proxyMappings = httpClientConfig.getArray("proxy-mappings");
+        if (proxyMappings != null && proxyMappings.length > 0) {
+            settings.add("proxy-mappings");
+        }
+        if (httpClientConfig.get("client-keystore") != null) {
+            settings.add("client-keystore");
+        }
+        if (Boolean.TRUE.equals(httpClientConfig.getBoolean("disable-trust-manager", false))) {
+            settings.add("disable-trust-manager");
+        }
+        PROXY_VARIABLES.stream().filter(v -> System.getenv(v) != null).forEach(settings::add);
+        return settings;
+    }
+
+    /**
+     * Open connections until the configured number of warm connections is available. Idle connections that have been closed by the
+     * external service in the meantime are replaced. Connections in use by requests count as warm, and at least one connection of the pool
+     * is always left to requests, so that a warm-up never makes a login wait. Concurrent warm-ups are serialized.
+     *
+     * @return The number of open connections after warm-up
+     */
+    synchronized int warmUp() {
+        connectionManager.closeExpiredConnections();
+        var stats = connectionManager.getTotalStats();
+        var inUse = stats.getLeased();
+        var missing = Math.min(warmConnections - inUse, stats.getMax() - inUse - stats.getPending() - 1);
+        var leased = new ArrayList<HttpClientConnection>(Math.max(missing, 0));
+        var context = HttpClientContext.create();
+        var open = 0;
+        try {
+            for (var i = 0; i < missing; i++) {
+                var connection = connectionManager.requestConnection(route, null).get(timeoutMillis, TimeUnit.MILLISECONDS);
+                leased.add(connection);
+                if (connection.isOpen() && isStale(connection)) {
+                    connection.close();
+                }
+                if (!connection.isOpen()) {
+                    connectionManager.connect(connection, route, timeoutMillis, context);
+                    connectionManager.routeComplete(connection, route, context);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | IOException e) {
+            LOGGER.warn("Failed to open warm connections to [{}]: [{}]", route.getTargetHost(), e.getMessage());
+        } finally {
+            for (var connection : leased) {
+                if (connection.isOpen()) {
+                    open++;
+                }
+                connectionManager.releaseConnection(connection, null, KEEP_WARM_SECONDS, TimeUnit.SECONDS);
+            }
+        }
+        return open + inUse;
+    }
+
+    /**
+     * A warm connection has never been used, so its input buffer is not yet bound to the socket and {@link HttpClientConnection#isStale()}
+     * would fail. Flushing the empty output buffer binds both buffers.
+     */
+    private static boolean isStale(HttpClientConnection connection) {
+        try {
+            connection.flush();
+            return connection.isStale();
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Close all connections.
+     */
+    void close() {
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            LOGGER.debug("Failed to close connection pool to [{}]: [{}]", route.getTargetHost(), e.getMessage());
+        }
+    }
+
+    /*~---------------- Accessors ------------- */
+    HttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    PoolStats getStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    int getWarmConnections() {
+        return warmConnections;
+    }
+}
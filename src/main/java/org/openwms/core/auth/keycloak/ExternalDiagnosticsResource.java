@@ -0,0 +1,268 @@
+/*
+ * Copyright 2005-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openwms.core.auth.keycloak;
+
+import jakarta.ws.rs.DefaultValue;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.resources.admin.AdminEventBuilder;
+import org.keycloak.services.resources.admin.permissions.AdminPermissionEvaluator;
+import org.keycloak.storage.UserStorageProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * A ExternalDiagnosticsResource reports the state of the external-http components of one realm. Reading requires the {@code view-realm}
+ * role, the actions to flush or refresh the cached users of the realm require {@code manage-realm} and are recorded as admin events.
+ * Usernames and emails are reported masked with the {@link AuditMasking} of the component.
+ * Cache and call statistics are kept per Keycloak node, each node reports its own state. Cache hits and misses are counted for the shared
+ * user cache of the component, lookups served from the per-session cache are not counted.
+ *
+ * @author Heiko Scherrer
+ */
+public class ExternalDiagnosticsResource {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExternalDiagnosticsResource.class);
+    private static final int MAX_TOP_MISSED = 100;
+
+    private final KeycloakSession session;
+    private final RealmModel realm;
+    private final AdminPermissionEvaluator auth;
+    private final AdminEventBuilder adminEvent;
+    private final ExternalUserStorageProviderFactory factory;
+
+    /**
+     * The state of one component.
+     *
+     * @param componentId The id of the component
+     * @param name The display name of the component
+     * @param cache The state of the user cache, or {@literal null} if the component has not been used yet on this node
+     * @param authorizationCacheSize The number of cached authorizations, or {@literal null} if not enabled
+     * @param calls The calls to the external service, or {@literal null} if the component has not been used yet on this node
+     * @param pool The own connection pool, or {@literal null} if the connection pool of Keycloak is used
+     * @param audit The audit pipeline, or {@literal null} if auditing is disabled or the component has not been used yet on this node
+     */
+    public record ComponentDiagnostics(String componentId, String name, CacheDiagnostics cache, Integer authorizationCacheSize,
+            CallDiagnostics calls, PoolDiagnostics pool, AuditDiagnostics audit) {
+    }
+
+    /**
+     * The state of the audit pipeline of one component.
+     *
+     * @param written Audit events written to the sink
+     * @param dropped Audit events dropped because the audit buffer was full or the audit pipeline was closed
+     */
+    public record AuditDiagnostics(long written, long dropped) {
+    }
+
+    /**
+     * The state of the own connection pool of one component.
+     *
+     * @param leased Connections currently in use
+     * @param available Idle connections ready for use
+     * @param pending Requests waiting for a connection
+     * @param max The maximum number of connections
+     * @param warm The number of connections kept warm
+     */
+    public record PoolDiagnostics(int leased, int available, int pending, int max, int warm) {
+    }
+
+    /**
+     * The state of the user cache of one component.
+     *
+     * @param size The number of cached users of all realms
+     * @param realmSize The number of cached users of this realm
+     * @param hits Lookups served from the cache, of all realms
+     * @param misses Lookups not served from the cache, of all realms
+     * @param hitRate The ratio of hits to all lookups
+     * @param topMissed The usernames and emails of this realm that missed most often
+     */
+    public record CacheDiagnostics(int size, long realmSize, long hits, long misses, double hitRate, List<MissedKey> topMissed) {
+    }
+
+    /**
+     * A username or email that has not been found in the cache.
+     *
+     * @param key The normalized username or email, masked like in the audit
+     * @param misses The number of misses
+     */
+    public record MissedKey(String key, long misses) {
+    }
+
+    /**
+     * The calls of one component to the external service.
+     *
+     * @param inFlight Calls currently waiting for the external service
+     * @param total All calls since the start
+     * @param failed All failed calls since the start
+     * @param recent Calls in the last minute
+     * @param recentFailed Failed calls in the last minute
+     * @param recentErrorRate The ratio of failed calls to all calls in the last minute
+     * @param lastFailure Reason of the last failure
+     * @param lastFailureAt Time in millis of the last failure
+     */
+    public record CallDiagnostics(int inFlight, long total, long failed, long recent, long recentFailed, double recentErrorRate,
+            String lastFailure, Long lastFailureAt) {
+    }
+
+    /*~---------------- Constructors ------------- */
+    ExternalDiagnosticsResource(KeycloakSession session, RealmModel realm, AdminPermissionEvaluator auth, AdminEventBuilder adminEvent,
+            ExternalUserStorageProviderFactory factory) {
+        this.session = session;
+        this.realm = realm;
+        this.auth = auth;
+        this.adminEvent = adminEvent.resource(ResourceType.COMPONENT);
+        this.factory = factory;
+    }
+
+    /*~---------------- Methods ------------- */
+    /**
+     * Report the state of all external-http components of the realm.
+     *
+     * @param top The number of top missed keys to report per component
+     * @return The state of each component
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public List<ComponentDiagnostics> getComponents(@QueryParam("top") @DefaultValue("10") int top) {
+        auth.realm().requireViewRealm();
+        return realm.getComponentsStream(realm.getId(), UserStorageProvider.class.getName())
+                .filter(c -> ExternalUserStorageProviderFactory.PROVIDER_ID.equals(c.getProviderId()))
+                .map(c -> diagnose(c, top))
+                .toList();
+    }
+
+    /**
+     * Report the state of one external-http component of the realm.
+     *
+     * @param componentId The id of the component
+     * @param top The number of top missed keys to report
+     * @return The state of the component
+     */
+    @GET
+    @Path("{componentId}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public ComponentDiagnostics getComponent(@PathParam("componentId") String componentId, @QueryParam("top") @DefaultValue("10") int top) {
+        auth.realm().requireViewRealm();
+        return diagnose(getComponentModel(componentId), top);
+    }
+
+    /**
+     * Remove all cached users and authorizations of the realm from the caches of the component on this node.
+     *
+     * @param componentId The id of the component
+     * @return {@code 204-NO_CONTENT}
+     */
+    @POST
+    @Path("{componentId}/cache/flush")
+    public Response flush(@PathParam("componentId") String componentId) {
+        auth.realm().requireManageRealm();
+        var component = getComponentModel(componentId);
+        factory.findUserCache(component.getId()).ifPresent(c -> c.clear(realm.getId()));
+        factory.findAuthorizationCache(component.getId()).ifPresent(c -> c.clear(realm.getId()));
+        LOGGER.info("Flushed cached users of realm [{}] and component [{}]", realm.getName(), component.getName());
+        adminEvent.operation(OperationType.ACTION).resourcePath(session.getContext().getUri()).success();
+        return Response.noContent().build();
+    }
+
+    /**
+     * Mark all cached users of the realm as stale, so that each one is revalidated against the external service on its next access.
+     * Cached authorizations of the realm are removed.
+     *
+     * @param componentId The id of the component
+     * @return {@code 204-NO_CONTENT}
+     */
+    @POST
+    @Path("{componentId}/cache/refresh")
+    public Response refresh(@PathParam("componentId") String componentId) {
+        auth.realm().requireManageRealm();
+        var component = getComponentModel(componentId);
+        factory.findUserCache(component.getId()).ifPresent(c -> c.markStale(realm.getId()));
+        factory.findAuthorizationCache(component.getId()).ifPresent(c -> c.clear(realm.getId()));
+        LOGGER.info("Marked cached users of realm [{}] and component [{}] for revalidation", realm.getName(), component.getName());
+        adminEvent.operation(OperationType.ACTION).resourcePath(session.getContext().getUri()).success();
+        return Response.noContent().build();
+    }
+
+    private ComponentModel getComponentModel(String componentId) {
+        var component = realm.getComponent(componentId);
+        if (component == null || !realm.getId().equals(component.getParentId())
+                || !ExternalUserStorageProviderFactory.PROVIDER_ID.equals(component.getProviderId())) {
+            throw new NotFoundException("Component not found");
+        }
+        return component;
+    }
+
+    /**
+     * Missed usernames and emails are masked like the subjects of the audit. If the audit masking is {@code NONE}, only admins with
+     * {@code manage-realm} see them unmasked, all others see them partially masked. Until the current configuration of the component has
+     * been loaded, they are partially masked for everyone.
+     */
+    private UnaryOperator<String> missedKeyMasking(ComponentModel component) {
+        var settings = factory.findConfig(component.getId())
+                .filter(c -> c.isBuiltFrom(component))
+                .map(ExternalProviderConfig::getAuditSettings);
+        if (settings.isEmpty() || settings.get().masking() == AuditMasking.NONE && !auth.realm().canManageRealm()) {
+            return key -> AuditMasking.PARTIAL.mask(key, null);
+        }
+        return settings.get()::mask;
+    }
+
+    private ComponentDiagnostics diagnose(ComponentModel component, int top) {
+        var limit = Math.max(0, Math.min(top, MAX_TOP_MISSED));
+        var masking = missedKeyMasking(component);
+        var cache = factory.findUserCache(component.getId()).map(c -> {
+            var hits = c.getHits();
+            var misses = c.getMisses();
+            return new CacheDiagnostics(c.size(), c.size(realm.getId()), hits, misses, ratio(hits, hits + misses),
+                    c.getMissedKeys().top(realm.getId(), limit).stream()
+                            .map(m -> new MissedKey(masking.apply(m.key()), m.misses()))
+                            .toList());
+        }).orElse(null);
+        var authorizationCacheSize = factory.findAuthorizationCache(component.getId()).map(UserAuthorizationCache::size).orElse(null);
+        var calls = factory.findCallStatistics(component.getId()).map(s -> {
+            var snapshot = s.snapshot();
+            return new CallDiagnostics(snapshot.inFlight(), snapshot.calls(), snapshot.failures(), snapshot.recentCalls(),
+                    snapshot.recentFailures(), ratio(snapshot.recentFailures(), snapshot.recentCalls()), snapshot.lastFailure(),
+                    snapshot.lastFailureAt() == 0 ? null : snapshot.lastFailureAt());
+        }).orElse(null);
+        var pool = factory.findConnectionPool(component.getId()).map(p -> {
+            var stats = p.getStats();
+            return new PoolDiagnostics(stats.getLeased(), stats.getAvailable(), stats.getPending(), stats.getMax(), p.getWarmConnections());
+        }).orElse(null);
+        var audit = factory.findAuditPipeline(component.getId()).map(a -> new AuditDiagnostics(a.getWritten(), a.getDropped())).orElse(null);
+        return new ComponentDiagnostics(component.getId(), component.getName(), cache, authorizationCacheSize, calls, pool, audit);
+    }
+
+    private static double ratio(long part, long total) {
+        return total == 0 ? 0 : (double) part / total;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2005-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openwms.core.auth.keycloak;
+
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.services.resources.admin.ext.AdminRealmResourceProvider;
+import org.keycloak.services.resources.admin.ext.AdminRealmResourceProviderFactory;
+
+/**
+ * A ExternalDiagnosticsResourceProviderFactory registers the {@link ExternalDiagnosticsResource} at the Keycloak Admin REST API under
+ * {@code /admin/realms/{realm}/external-http}.
+ *
+ * @author Heiko Scherrer
+ */
+public class ExternalDiagnosticsResourceProviderFactory implements AdminRealmResourceProviderFactory {
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public AdminRealmResourceProvider create(KeycloakSession session) {
+        return new ExternalDiagnosticsResourceProvider();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void init(Config.Scope config) {
+        // nothing to configure
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        // nothing to initialize
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+        // nothing to release
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getId() {
+        return ExternalUserStorageProviderFactory.PROVIDER_ID;
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ * Copyright 2005-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openwms.core.auth.keycloak;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.keycloak.common.util.MultivaluedHashMap;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.component.ComponentValidationException;
+import org.openwms.core.auth.keycloak.api.WireFormat;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * A ExternalProviderConfig is the immutable, validated snapshot of the {@link ComponentModel} configuration of one provider component. It
+ * is parsed once when the component is created or updated, so that the login path does neither parse configuration values nor format
+ * URIs. The endpoint URIs are computed once per realm and kept. Because Keycloak notifies only the cluster node where the component has been
+ * saved, a snapshot remembers the configuration it has been built from and can tell whether it is still current. Only the properties of
+ * this provider are compared, properties Keycloak manages itself, like the {@code lastSync} time written after each synchronization or
+ * the cache policy, do not invalidate a snapshot.
+ *
+ * @author Heiko Scherrer
+ */
+final class ExternalProviderConfig {
+
+    static final String REST_SCHEMA = "restSchema";
+    static final String SERVICE_HOSTNAME = "serviceHostname";
+    static final String SERVICE_PORT = "servicePort";
+    static final String CACHE_TTL_SECONDS = "cacheTtlSeconds";
+    static final String WIRE_FORMAT = "wireFormat";
+    static final String CACHE_SNAPSHOT_INTERVAL_SECONDS = "cacheSnapshotIntervalSeconds";
+    static final String THROTTLE_USER_ATTEMPTS_PER_MINUTE = "throttleUserAttemptsPerMinute";
+    static final String THROTTLE_USER_BURST = "throttleUserBurst";
+    static final String THROTTLE_REALM_ATTEMPTS_PER_SECOND = "throttleRealmAttemptsPerSecond";
+    static final String THROTTLE_REALM_BURST = "throttleRealmBurst";
+    static final String AUTHORIZATION_ENABLED = "authorizationEnabled";
+    static final String AUTHORIZATION_CACHE_TTL_SECONDS = "authorizationCacheTtlSeconds";
+    static final String AUTHORIZATION_ATTRIBUTES = "authorizationAttributes";
+    static final String WARM_CONNECTIONS = "warmConnections";
+    static final String MAX_CONNECTIONS = "maxConnections";
+    static final String DNS_CACHE_TTL_SECONDS = "dnsCacheTtlSeconds";
+    static final String AUDIT_SINK = "auditSink";
+    static final String AUDIT_SAMPLE_RATE = "auditSampleRate";
+    static final String AUDIT_MASKING = "auditMasking";
+    static final String AUDIT_HASH_SECRET = "auditHashSecret";
+    static final List<String> KEYS = List.of(REST_SCHEMA, SERVICE_HOSTNAME, SERVICE_PORT, CACHE_TTL_SECONDS, WIRE_FORMAT,
+            CACHE_SNAPSHOT_INTERVAL_SECONDS, THROTTLE_USER_ATTEMPTS_PER_MINUTE, THROTTLE_USER_BURST,
+            THROTTLE_REALM_ATTEMPTS_PER_SECOND, THROTTLE_REALM_BURST, AUTHORIZATION_ENABLED, AUTHORIZATION_CACHE_TTL_SECONDS,
+            AUTHORIZATION_ATTRIBUTES, WARM_CONNECTIONS, MAX_CONNECTIONS, DNS_CACHE_TTL_SECONDS, AUDIT_SINK, AUDIT_SAMPLE_RATE,
+            AUDIT_MASKING, AUDIT_HASH_SECRET);
+    private static final int DEFAULT_TIMEOUT_MILLIS = 3000;
+    private static final int MIN_HASH_SECRET_LENGTH = 16;
+
+    private final Map<String, List<String>> source;
+    private final String baseUri;
+    private final HttpHost serviceHost;
+    private final Duration cacheTtl;
+    private final WireCodec codec;
+    private final RequestConfig requestConfig;
+    private final Duration snapshotInterval;
+    private final ThrottleSettings throttleSettings;
+    private final boolean authorizationEnabled;
+    private final Duration authorizationCacheTtl;
+    private final Set<String> authorizationAttributes;
+    private final ConnectionSettings connectionSettings;
+    private final AuditSettings auditSettings;
+    private final Map<String, Endpoints> endpoints = new ConcurrentHashMap<>();
+
+    /**
+     * The endpoints of the external service for one realm.
+     *
+     * @param users The Find User Endpoint
+     * @param validate The Validate User Endpoint
+     * @param changes The User Changes Endpoint
+     * @param authorization The User Authorization Endpoint
+     */
+    record Endpoints(URI users, URI validate, URI changes, URI authorization) {
+    }
+
+    /**
+     * The settings of the {@link ExternalConnectionPool}.
+     *
+     * @param warmConnections Connections kept open to the external service, 0 uses the connection pool of Keycloak
+     * @param maxConnections The maximum number of connections to the external service
+     * @param dnsCacheTtl How long the address of the external service is cached
+     */
+    record ConnectionSettings(int warmConnections, int maxConnections, Duration dnsCacheTtl) {
+    }
+
+    /**
+     * The settings of the {@link AuditPipeline}.
+     *
+     * @param sink Where audit events are written to
+     * @param sampleRate The ratio of successful actions that are recorded
+     * @param masking How usernames and emails are masked
+     * @param hashKey The secret of the {@link AuditMasking#HASH} masking, otherwise {@literal null}
+     */
+    record AuditSettings(AuditSink.Type sink, double sampleRate, AuditMasking masking, SecretKey hashKey) {
+
+        /**
+         * Mask a username or email as configured.
+         *
+         * @param subject The username or email, may be {@literal null}
+         * @return The masked subject
+         */
+        String mask(String subject) {
+            return masking.mask(subject, hashKey);
+        }
+    }
+
+    /**
+     * The limits of the {@link LoginThrottle}.
+     *
+     * @param userAttemptsPerMinute Sustained validations per user and minute, 0 disables the user limit
+     * @param userBurst Validations a user may do at once
+     * @param realmAttemptsPerSecond Sustained validations per realm and second, 0 disables the realm limit
+     * @param realmBurst Validations a realm may do at once
+     */
+    record ThrottleSettings(long userAttemptsPerMinute, long userBurst, long realmAttemptsPerSecond, long realmBurst) {
+    }
+
+    private ExternalProviderConfig(Map<String, List<String>> source, HttpHost serviceHost, Duration cacheTtl, WireFormat wireFormat,
+            Duration snapshotInterval, ThrottleSettings throttleSettings, boolean authorizationEnabled,
+            Duration authorizationCacheTtl, Set<String> authorizationAttributes, ConnectionSettings connectionSettings,
+            AuditSettings auditSettings) {
+        this.source = source;
+        this.serviceHost = serviceHost;
+        this.baseUri = serviceHost.toURI();
+        this.cacheTtl = cacheTtl;
+        this.snapshotInterval = snapshotInterval;
+        this.throttleSettings = throttleSettings;
+        this.authorizationEnabled = authorizationEnabled;
+        this.authorizationCacheTtl = authorizationCacheTtl;
+        this.authorizationAttributes = authorizationAttributes;
+        this.connectionSettings = connectionSettings;
+        this.auditSettings = auditSettings;
+        this.codec = WireCodec.of(wireFormat);
+        this.requestConfig = RequestConfig.custom()
+                .setConnectTimeout(DEFAULT_TIMEOUT_MILLIS)
+                .setConnectionRequestTimeout(DEFAULT_TIMEOUT_MILLIS)
+                .setSocketTimeout(DEFAULT_TIMEOUT_MILLIS)
+                .build();
+    }
+
+    /**
+     * Parse and validate the configuration of the given component.
+     *
+     * @param model The component model
+     * @return The configuration snapshot
+     * @throws ComponentValidationException In case a configuration value is missing or invalid
+     */
+    static ExternalProviderConfig of(ComponentModel model) {
+        var config = model.getConfig();
+        var schema = required(config.getFirst(REST_SCHEMA), "Rest schema").toLowerCase();
+        if (!"http".equals(schema) && !"https".equals(schema)) {
+            throw new ComponentValidationException("Rest schema must be http or https but is [%s]".formatted(schema));
+        }
+        var hostname = required(config.getFirst(SERVICE_HOSTNAME), "Service hostname");
+        var port = parseLong(required(config.getFirst(SERVICE_PORT), "Service port"), "Service port");
+        if (port < 1 || port > 65535) {
+            throw new ComponentValidationException("Service port must be between 1 and 65535 but is [%s]".formatted(port));
+        }
+        var ttl = parseLong(config.getFirst(CACHE_TTL_SECONDS), 300, "User cache TTL");
+        if (ttl < 0) {
+            throw new ComponentValidationException("User cache TTL must not be negative but is [%s]".formatted(ttl));
+        }
+        WireFormat wireFormat;
+        try {
+            var value = config.getFirst(WIRE_FORMAT);
+            wireFormat = value == null || value.isBlank() ? WireFormat.JSON : WireFormat.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new ComponentValidationException("Wire format [%s] is not supported".formatted(config.getFirst(WIRE_FORMAT)));
+        }
+        var baseUri = "%s://%s:%s".formatted(schema, hostname, port);
+        try {
+            new URI(baseUri).parseServerAuthority();
+        } catch (URISyntaxException e) {
+            throw new ComponentValidationException("Service hostname [%s] is invalid: %s".formatted(hostname, e.getMessage()));
+        }
+        var snapshotInterval = parseLong(config.getFirst(CACHE_SNAPSHOT_INTERVAL_SECONDS), 300, "Cache snapshot interval");
+        if (snapshotInterval < 1) {
+            throw new ComponentValidationException("Cache snapshot interval must be positive but is [%s]".formatted(snapshotInterval));
+        }
+        var throttleSettings = new ThrottleSettings(
+                parseLong(config.getFirst(THROTTLE_USER_ATTEMPTS_PER_MINUTE), 0, "User login throttle"),
+                parseLong(config.getFirst(THROTTLE_USER_BURST), 5, "User login burst"),
+                parseLong(config.getFirst(THROTTLE_REALM_ATTEMPTS_PER_SECOND), 0, "Realm login throttle"),
+                parseLong(config.getFirst(THROTTLE_REALM_BURST), 50, "Realm login burst")
+        );
+        if (throttleSettings.userAttemptsPerMinute() < 0 || throttleSettings.userBurst() < 1
+                || throttleSettings.realmAttemptsPerSecond() < 0 || throttleSettings.realmBurst() < 1) {
+            throw new ComponentValidationException("Login throttle settings are invalid [%s]".formatted(throttleSettings));
+        }
+        var authorizationTtl = parseLong(config.getFirst(AUTHORIZATION_CACHE_TTL_SECONDS), 60, "Authorization cache TTL");
+        if (authorizationTtl < 0) {
+            throw new ComponentValidationException("Authorization cache TTL must not be negative but is [%s]".formatted(authorizationTtl));
+        }
+        var warmConnections = parseLong(config.getFirst(WARM_CONNECTIONS), 0, "Warm connections");
+        var maxConnections = parseLong(config.getFirst(MAX_CONNECTIONS), 20, "Max connections");
+        if (warmConnections < 0 || maxConnections < 1 || warmConnections >= maxConnections) {
+            throw new ComponentValidationException("Warm connections [%s] must be at least 0 and less than max connections [%s]"
+                    .formatted(warmConnections, maxConnections));
+        }
+        var dnsCacheTtl = parseLong(config.getFirst(DNS_CACHE_TTL_SECONDS), 60, "DNS cache TTL");
+        if (dnsCacheTtl < 0) {
+            throw new ComponentValidationException("DNS cache TTL must not be negative but is [%s]".formatted(dnsCacheTtl));
+        }
+        var connectionSettings = new ConnectionSettings((int) warmConnections, (int) maxConnections, Duration.ofSeconds(dnsCacheTtl));
+        return new ExternalProviderConfig(copyOf(config), new HttpHost(hostname, (int) port, schema), Duration.ofSeconds(ttl), wireFormat,
+                Duration.ofSeconds(snapshotInterval), throttleSettings,
+                Boolean.parseBoolean(config.getFirst(AUTHORIZATION_ENABLED)), Duration.ofSeconds(authorizationTtl),
+                parseNames(config.getFirst(AUTHORIZATION_ATTRIBUTES)), connectionSettings, auditSettings(config));
+    }
+
+    private static AuditSettings auditSettings(MultivaluedHashMap<String, String> config) {
+        var sink = parseEnum(config.getFirst(AUDIT_SINK), AuditSink.Type.class, AuditSink.Type.LOG, "Audit sink");
+        var sampleRateValue = config.getFirst(AUDIT_SAMPLE_RATE);
+        double sampleRate;
+        try {
+            sampleRate = sampleRateValue == null || sampleRateValue.isBlank() ? 1 : Double.parseDouble(sampleRateValue.trim());
+        } catch (NumberFormatException e) {
+            throw new ComponentValidationException("Audit sample rate must be a number but is [%s]".formatted(sampleRateValue));
+        }
+        if (!(sampleRate >= 0 && sampleRate <= 1)) {
+            throw new ComponentValidationException("Audit sample rate must be between 0 and 1 but is [%s]".formatted(sampleRate));
+        }
+        var masking = parseEnum(config.getFirst(AUDIT_MASKING), AuditMasking.class, AuditMasking.PARTIAL, "Audit masking");
+        SecretKey hashKey = null;
+        if (masking == AuditMasking.HASH) {
+            var secret = config.getFirst(AUDIT_HASH_SECRET);
+            if (secret == null || secret.length() < MIN_HASH_SECRET_LENGTH) {
+                throw new ComponentValidationException("Audit hash secret must have at least [%d] characters"
+                        .formatted(MIN_HASH_SECRET_LENGTH));
+            }
+            hashKey = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), AuditMasking.HMAC_ALGORITHM);
+        }
+        return new AuditSettings(sink, sampleRate, masking, hashKey);
+    }
+
+    private static <E extends Enum<E>> E parseEnum(String value, Class<E> type, E defaultValue, String label) {
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Enum.valueOf(type, value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new ComponentValidationException("%s [%s] is not supported".formatted(label, value));
+        }
+    }
+
+    private static Map<String, List<String>> copyOf(Map<String, List<String>> config) {
+        var copy = new HashMap<String, List<String>>(KEYS.size());
+        for (var key : KEYS) {
+            var values = config.get(key);
+            if (values != null) {
+                copy.put(key, new ArrayList<>(values));
+            }
+        }
+        return copy;
+    }
+
+    private static Set<String> parseNames(String value) {
+        if (value == null || value.isBlank()) {
+            return Set.of();
+        }
+        return Arrays.stream(value.split(","))
+                .map(String::trim)
+                .filter(name -> !name.isEmpty())
+                .collect(Collectors.toUnmodifiableSet());
+    }
+
+    private static String required(String value, String label) {
+        if (value == null || value.isBlank()) {
+            throw new ComponentValidationException("%s must be configured".formatted(label));
+        }
+        return value.trim();
+    }
+
+    private static long parseLong(String value, long defaultValue, String label) {
+        return value == null || value.isBlank() ? defaultValue : parseLong(value, label);
+    }
+
+    private static long parseLong(String value, String label) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new ComponentValidationException("%s must be a number but is [%s]".formatted(label, value));
+        }
+    }
+
+    /**
+     * Check whether this snapshot has been built from the current configuration of the component. Only the {@link #KEYS} of this
+     * provider are compared.
+     *
+     * @param model The component model
+     * @return {@literal true} if the configuration of the provider has not changed since
+     */
+    boolean isBuiltFrom(ComponentModel model) {
+        var config = model.getConfig();
+        for (var key : KEYS) {
+            if (!Objects.equals(source.get(key), config.get(key))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*~---------------- Accessors ------------- */
+    /**
+     * Return the endpoints of the external service for the given realm, computed only on first access.
+     *
+     * @param realmId The realm id that is used as tenantId
+     * @return The endpoints
+     */
+    Endpoints getEndpoints(String realmId) {
+        return endpoints.computeIfAbsent(realmId, id -> new Endpoints(
+                URI.create(baseUri + "/auth/" + id + "/users"),
+                URI.create(baseUri + "/auth/" + id + "/users/validate"),
+                URI.create(baseUri + "/auth/" + id + "/users/changes"),
+                URI.create(baseUri + "/auth/" + id + "/users/authorization")
+        ));
+    }
+
+    HttpHost getServiceHost() {
+        return serviceHost;
+    }
+
+    Duration getCacheTtl() {
+        return cacheTtl;
+    }
+
+    WireCodec getCodec() {
+        return codec;
+    }
+
+    RequestConfig getRequestConfig() {
+        return requestConfig;
+    }
+
+    Duration getSnapshotInterval() {
+        return snapshotInterval;
+    }
+
+    ThrottleSettings getThrottleSettings() {
+        return throttleSettings;
+    }
+
+    boolean isAuthorizationEnabled() {
+        return authorizationEnabled;
+    }
+
+    Duration getAuthorizationCacheTtl() {
+        return authorizationCacheTtl;
+    }
+
+    Set<String> getAuthorizationAttributes() {
+        return authorizationAttributes;
+    }
+
+    ConnectionSettings getConnectionSettings() {
+        return connectionSettings;
+    }
+
+    AuditSettings getAuditSettings() {
+        return auditSettings;
+    }
+}
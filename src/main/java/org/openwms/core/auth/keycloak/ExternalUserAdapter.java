@@ -16,28 +16,53 @@
 package org.openwms.core.auth.keycloak;
 
 import org.openwms.core.auth.keycloak.api.ExternalUser;
+import org.openwms.core.auth.keycloak.api.UserAuthorization;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.credential.UserCredentialManager;
+import org.keycloak.models.GroupModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
 import org.keycloak.models.SubjectCredentialManager;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.storage.adapter.AbstractUserAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
 import java.util.StringJoiner;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 /**
- * A ExternalUserAdapter.
+ * A ExternalUserAdapter. Roles, groups and custom attributes are loaded only on first access, if an authorization loader has been
+ * given. Roles and groups are referenced by name and resolved against the realm, unknown ones are skipped. Only the configured
+ * authorization attributes are taken from the external authorization and only reading one of them by name loads it, so that Keycloak
+ * reading other attributes, like the {@code locale} on each login, does not call the external service. The authorization is loaded at
+ * most once per adapter, that lives as long as the Keycloak session, a failed load leaves the user without roles, groups and attributes
+ * until the next session.
  *
  * @author Heiko Scherrer
  */
 class ExternalUserAdapter extends AbstractUserAdapter implements Serializable {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExternalUserAdapter.class);
+
     private String username;
     private String firstName;
     private String lastName;
     private String email;
+    private transient Supplier<Optional<UserAuthorization>> authorizationLoader;
+    private transient Set<String> authorizationAttributes = Set.of();
+    private transient volatile UserAuthorization authorization;
 
     /*~---------------- Constructors ------------- */
     /**
@@ -58,11 +83,30 @@ class ExternalUserAdapter extends AbstractUserAdapter implements Serializable {
      * @return An instance of AbstractUserAdapter initialized with the given external user's details
      */
     public static AbstractUserAdapter of(KeycloakSession session, RealmModel realm, ComponentModel componentModel, ExternalUser user) {
+        return of(session, realm, componentModel, user, null, Set.of());
+    }
+
+    /**
+     * Like {@link #of(KeycloakSession, RealmModel, ComponentModel, ExternalUser)} but roles, groups and attributes are loaded with the
+     * {@code authorizationLoader} once they are accessed the first time.
+     *
+     * @param session The Keycloak session to associate with this adapter
+     * @param realm The realm model representing the Keycloak realm
+     * @param componentModel The storage provider model used for storage operations
+     * @param user The external user whose details will populate the adapter
+     * @param authorizationLoader Loads the authorization of the user, or {@literal null} if not supported
+     * @param authorizationAttributes The names of the attributes taken from the authorization
+     * @return An instance of AbstractUserAdapter initialized with the given external user's details
+     */
+    public static AbstractUserAdapter of(KeycloakSession session, RealmModel realm, ComponentModel componentModel, ExternalUser user,
+            Supplier<Optional<UserAuthorization>> authorizationLoader, Set<String> authorizationAttributes) {
         var result = new ExternalUserAdapter(session, realm, componentModel);
         result.setUsername(user.getUsername());
         result.setFirstName(user.getFirstName());
         result.setLastName(user.getLastName());
         result.setEmail(user.getEmail());
+        result.authorizationLoader = authorizationLoader;
+        result.authorizationAttributes = authorizationAttributes;
         return result;
     }
 
@@ -75,6 +119,140 @@ class ExternalUserAdapter extends AbstractUserAdapter implements Serializable {
         return new UserCredentialManager(session, realm, this);
     }
 
+    /**
+     * Load the authorization on first access and keep it for the lifetime of the adapter. If loading fails, an empty authorization is
+     * kept, so that one session does not call the external service again for each accessor.
+     */
+    private UserAuthorization authorization() {
+        var result = authorization;
+        if (result == null) {
+            synchronized (this) {
+                result = authorization;
+                if (result == null) {
+                    var loaded = authorizationLoader == null ? Optional.of(new UserAuthorization()) : authorizationLoader.get();
+                    if (loaded.isEmpty()) {
+                        LOGGER.warn("Authorization of user [{}] could not be loaded, roles, groups and attributes are missing", username);
+                    }
+                    result = loaded.orElseGet(UserAuthorization::new);
+                    authorization = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The realm and client roles of the external authorization.
+     */
+    @Override
+    protected Set<RoleModel> getRoleMappingsInternal() {
+        if (authorizationLoader == null) {
+            return super.getRoleMappingsInternal();
+        }
+        var loaded = authorization();
+        var roles = new HashSet<RoleModel>();
+        loaded.getRealmRoles().forEach(name -> addRole(roles, realm.getRole(name), name));
+        loaded.getClientRoles().forEach((clientId, names) -> {
+            var client = realm.getClientByClientId(clientId);
+            if (client == null) {
+                LOGGER.debug("Client [{}] of user [{}] does not exist in realm [{}]", clientId, username, realm.getName());
+                return;
+            }
+            names.forEach(name -> addRole(roles, client.getRole(name), clientId + "/" + name));
+        });
+        return roles;
+    }
+
+    private void addRole(Set<RoleModel> roles, RoleModel role, String name) {
+        if (role == null) {
+            LOGGER.debug("Role [{}] of user [{}] does not exist in realm [{}]", name, username, realm.getName());
+        } else {
+            roles.add(role);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The groups of the external authorization.
+     */
+    @Override
+    protected Set<GroupModel> getGroupsInternal() {
+        if (authorizationLoader == null) {
+            return super.getGroupsInternal();
+        }
+        var groups = new HashSet<GroupModel>();
+        for (var path : authorization().getGroups()) {
+            var group = KeycloakModelUtils.findGroupByPath(session, realm, path);
+            if (group == null) {
+                LOGGER.debug("Group [{}] of user [{}] does not exist in realm [{}]", path, username, realm.getName());
+            } else {
+                groups.add(group);
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The configured attributes of the external authorization are added if it has already been loaded, they never override the built-in
+     * attributes. Keycloak reads all attributes on each login, so this method does not load the authorization.
+     */
+    @Override
+    public Map<String, List<String>> getAttributes() {
+        var loaded = authorization;
+        if (loaded == null || authorizationAttributes.isEmpty()) {
+            return super.getAttributes();
+        }
+        var attributes = new HashMap<>(super.getAttributes());
+        loaded.getAttributes().forEach((name, values) -> {
+            if (isAuthorizationAttribute(name)) {
+                attributes.putIfAbsent(name, values);
+            }
+        });
+        return attributes;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Configured attributes are read from the external authorization, that is loaded if necessary.
+     */
+    @Override
+    public String getFirstAttribute(String name) {
+        if (!isAuthorizationAttribute(name)) {
+            return super.getFirstAttribute(name);
+        }
+        var values = authorization().getAttributes().get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Configured attributes are read from the external authorization, that is loaded if necessary.
+     */
+    @Override
+    public Stream<String> getAttributeStream(String name) {
+        if (!isAuthorizationAttribute(name)) {
+            return super.getAttributeStream(name);
+        }
+        var values = authorization().getAttributes().get(name);
+        return values == null ? Stream.empty() : values.stream();
+    }
+
+    private boolean isAuthorizationAttribute(String name) {
+        return authorizationLoader != null && authorizationAttributes.contains(name) && !isBuiltIn(name);
+    }
+
+    private static boolean isBuiltIn(String name) {
+        return UserModel.USERNAME.equals(name) || UserModel.FIRST_NAME.equals(name) || UserModel.LAST_NAME.equals(name)
+                || UserModel.EMAIL.equals(name);
+    }
+
     /**
      * {@inheritDoc}
      *
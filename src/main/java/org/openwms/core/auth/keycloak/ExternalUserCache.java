@@ -0,0 +1,387 @@
+/*
+ * Copyright 2005-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openwms.core.auth.keycloak;
+
+import org.openwms.core.auth.keycloak.api.ExternalUser;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * A ExternalUserCache is the session-free cache of resolved external users. Other than the per-session cache of the
+ * {@link ExternalUserProvider} it survives the Keycloak session and is shared between all provider instances of one component. Only the
+ * profile data of the {@link ExternalUser} is cached, never any credentials. Entries are indexed by username and by email, both are
+ * normalized to lowercase and combined with the realm id. Entries restored from a snapshot are marked as stale, they are still served but
+ * handed over to the revalidator on first access. Entries read from the user change feed do not expire, they are kept up to date by the
+ * feed itself, a full synchronization sweeps the entries of a realm that the feed did not contain anymore. The cache also keeps the
+ * checkpoint of the change feed per realm, so that the checkpoint never outlives the entries it belongs to. Each clear of a realm starts a
+ * new generation, checkpoints of a synchronization that started in an older generation are ignored. Hits and misses are counted for
+ * diagnostics.
+ *
+ * @author Heiko Scherrer
+ */
+class ExternalUserCache {
+
+    private final long ttlMillis;
+    private final Map<CombinedUserKey, Entry> usersByUsername = new ConcurrentHashMap<>();
+    private final Map<CombinedUserKey, Entry> usersByEmail = new ConcurrentHashMap<>();
+    private final Set<CombinedUserKey> revalidating = ConcurrentHashMap.newKeySet();
+    private final Map<String, String> checkpoints = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> generations = new ConcurrentHashMap<>();
+    private volatile BiConsumer<String, ExternalUser> revalidator = (realmId, user) -> { };
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final MissedKeys missedKeys = new MissedKeys();
+
+    /**
+     * An immutable cache entry.
+     *
+     * @param realmId The realm the user belongs to
+     * @param user The cached external user
+     * @param loadedAt The time in millis the entry has been put into the cache
+     * @param stale Whether the entry has been restored from a snapshot and not yet revalidated
+     * @param synced Whether the entry has been read from the user change feed and is therefore not subject to the TTL
+     */
+    record Entry(String realmId, ExternalUser user, long loadedAt, boolean stale, boolean synced) {
+
+        Entry asStale() {
+            return new Entry(realmId, user, loadedAt, true, synced);
+        }
+    }
+
+    /*~---------------- Constructors ------------- */
+    /**
+     * Create a cache where entries expire after the given {@code ttl}.
+     *
+     * @param ttl The time-to-live of entries, {@link Duration#ZERO} means entries never expire
+     */
+    ExternalUserCache(Duration ttl) {
+        this.ttlMillis = ttl.toMillis();
+    }
+
+    /*~---------------- Methods ------------- */
+    /**
+     * Find a non-expired user by username.
+     *
+     * @param realmId The realm id
+     * @param username The username, not normalized
+     * @return The cached user or nothing
+     */
+    Optional<ExternalUser> findByUsername(String realmId, String username) {
+        return find(usersByUsername, realmId, normalize(username));
+    }
+
+    /**
+     * Find a non-expired user by email.
+     *
+     * @param realmId The realm id
+     * @param email The email address, not normalized
+     * @return The cached user or nothing
+     */
+    Optional<ExternalUser> findByEmail(String realmId, String email) {
+        return find(usersByEmail, realmId, normalize(email));
+    }
+
+    private Optional<ExternalUser> find(Map<CombinedUserKey, Entry> index, String realmId, String value) {
+        var key = new CombinedUserKey(value, realmId);
+        var entry = index.get(key);
+        if (entry == null) {
+            miss(realmId, value);
+            return Optional.empty();
+        }
+        if (isExpired(entry)) {
+            index.remove(key, entry);
+            miss(realmId, value);
+            return Optional.empty();
+        }
+        hits.increment();
+        if (entry.stale() && revalidating.add(usernameKey(entry))) {
+            revalidator.accept(entry.realmId(), entry.user());
+        }
+        return Optional.of(entry.user());
+    }
+
+    private void miss(String realmId, String value) {
+        misses.increment();
+        missedKeys.record(realmId, value);
+    }
+
+    boolean isExpired(Entry entry) {
+        return ttlMillis > 0 && !entry.synced() && System.currentTimeMillis() - entry.loadedAt() > ttlMillis;
+    }
+
+    /**
+     * Put or replace a user. If the email address of an already cached user has changed, the stale email index entry is dropped. Once a
+     * realm has been synchronized from the user change feed, all its entries are kept up to date by the feed and do not expire.
+     *
+     * @param realmId The realm id
+     * @param user The user to cache, the username must not be {@literal null}
+     * @return {@literal true} if the user was not cached before
+     */
+    boolean put(String realmId, ExternalUser user) {
+        return put(realmId, user, false);
+    }
+
+    /**
+     * Put or replace a user read from the user change feed. Such an entry does not expire.
+     *
+     * @param realmId The realm id
+     * @param user The user to cache, the username must not be {@literal null}
+     * @return {@literal true} if the user was not cached before
+     */
+    boolean putSynced(String realmId, ExternalUser user) {
+        return put(realmId, user, true);
+    }
+
+    private boolean put(String realmId, ExternalUser user, boolean synced) {
+        var entry = new Entry(realmId, user, System.currentTimeMillis(), false, synced || checkpoints.containsKey(realmId));
+        var key = new CombinedUserKey(normalize(user.getUsername()), realmId);
+        var previous = usersByUsername.put(key, entry);
+        revalidating.remove(key);
+        if (previous != null && previous.user().getEmail() != null) {
+            usersByEmail.remove(new CombinedUserKey(normalize(previous.user().getEmail()), realmId), previous);
+        }
+        if (user.getEmail() != null) {
+            usersByEmail.put(new CombinedUserKey(normalize(user.getEmail()), realmId), entry);
+        }
+        return previous == null;
+    }
+
+    /**
+     * Remove a user from both indexes.
+     *
+     * @param realmId The realm id
+     * @param username The username of the user to remove
+     * @return {@literal true} if the user has been cached before
+     */
+    boolean remove(String realmId, String username) {
+        var key = new CombinedUserKey(normalize(username), realmId);
+        var previous = usersByUsername.remove(key);
+        revalidating.remove(key);
+        if (previous == null) {
+            return false;
+        }
+        if (previous.user().getEmail() != null) {
+            usersByEmail.remove(new CombinedUserKey(normalize(previous.user().getEmail()), realmId), previous);
+        }
+        return true;
+    }
+
+    /**
+     * Remove all users of one realm that have been put before the given time. Used after the whole user change feed has been applied, to
+     * drop users that have been deleted in the external service without a delete record reaching this cache.
+     *
+     * @param realmId The realm id
+     * @param before The time in millis a synchronization from the beginning of the feed started at
+     * @return The number of removed users
+     */
+    int sweep(String realmId, long before) {
+        var removed = 0;
+        for (var entry : usersByUsername.entrySet()) {
+            var e = entry.getValue();
+            if (e.realmId().equals(realmId) && e.loadedAt() < before && usersByUsername.remove(entry.getKey(), e)) {
+                revalidating.remove(entry.getKey());
+                if (e.user().getEmail() != null) {
+                    usersByEmail.remove(new CombinedUserKey(normalize(e.user().getEmail()), realmId), e);
+                }
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Add a stale entry restored from a snapshot. Users that have been cached in the meantime are not overridden. The entry is only
+     * restored if the realm is still at the checkpoint the snapshot was written with, otherwise the realm has been synchronized or
+     * cleared in the meantime and the entry may be outdated.
+     *
+     * @param realmId The realm id
+     * @param user The restored user
+     * @param checkpoint The checkpoint of the realm in the snapshot or {@literal null} if the realm has not been synchronized
+     * @return {@literal false} if the entry has been skipped because the realm is at another checkpoint
+     */
+    boolean restore(String realmId, ExternalUser user, String checkpoint) {
+        if (!Objects.equals(checkpoints.get(realmId), checkpoint)) {
+            return false;
+        }
+        var entry = new Entry(realmId, user, System.currentTimeMillis(), true, checkpoint != null);
+        if (usersByUsername.putIfAbsent(new CombinedUserKey(normalize(user.getUsername()), realmId), entry) == null
+                && user.getEmail() != null) {
+            usersByEmail.putIfAbsent(new CombinedUserKey(normalize(user.getEmail()), realmId), entry);
+        }
+        return true;
+    }
+
+    /**
+     * Mark the revalidation of a stale entry as finished, no matter whether it succeeded.
+     *
+     * @param realmId The realm id
+     * @param username The username of the revalidated user
+     */
+    void revalidated(String realmId, String username) {
+        revalidating.remove(new CombinedUserKey(normalize(username), realmId));
+    }
+
+    /**
+     * Return all cached entries, including expired and stale ones.
+     *
+     * @return A weakly consistent view on the entries
+     */
+    Collection<Entry> entries() {
+        return usersByUsername.values();
+    }
+
+    private static CombinedUserKey usernameKey(Entry entry) {
+        return new CombinedUserKey(normalize(entry.user().getUsername()), entry.realmId());
+    }
+
+    /**
+     * Find the checkpoint of the user change feed up to which the users of one realm have been synchronized.
+     *
+     * @param realmId The realm id
+     * @return The checkpoint or nothing if the realm has not been synchronized into this cache
+     */
+    Optional<String> findCheckpoint(String realmId) {
+        return Optional.ofNullable(checkpoints.get(realmId));
+    }
+
+    /**
+     * Return the checkpoints of all synchronized realms.
+     *
+     * @return A copy of the checkpoints by realm id
+     */
+    Map<String, String> checkpoints() {
+        return Map.copyOf(checkpoints);
+    }
+
+    /**
+     * Return the current generation of one realm, to be passed to {@link #setCheckpoint(String, long, String)} by a synchronization that
+     * starts now.
+     *
+     * @param realmId The realm id
+     * @return The generation, incremented by each clear of the realm
+     */
+    long generation(String realmId) {
+        return generations.computeIfAbsent(realmId, k -> new AtomicLong()).get();
+    }
+
+    /**
+     * Remember the checkpoint of the user change feed up to which the users of one realm have been synchronized. The checkpoint is ignored
+     * if the realm has been cleared since the synchronization started, because the cache does not contain the changes before it anymore.
+     *
+     * @param realmId The realm id
+     * @param generation The generation of the realm when the synchronization started
+     * @param checkpoint The checkpoint of the last applied change
+     * @return {@literal true} if the checkpoint has been set
+     */
+    synchronized boolean setCheckpoint(String realmId, long generation, String checkpoint) {
+        if (generation(realmId) != generation) {
+            return false;
+        }
+        checkpoints.put(realmId, checkpoint);
+        return true;
+    }
+
+    /**
+     * Set the checkpoint of a realm restored from a snapshot, unless the realm has been synchronized in the meantime.
+     *
+     * @param realmId The realm id
+     * @param checkpoint The restored checkpoint
+     */
+    synchronized void restoreCheckpoint(String realmId, String checkpoint) {
+        checkpoints.putIfAbsent(realmId, checkpoint);
+    }
+
+    /**
+     * Remove all users and the checkpoint of one realm.
+     *
+     * @param realmId The realm id
+     */
+    synchronized void clear(String realmId) {
+        generations.computeIfAbsent(realmId, k -> new AtomicLong()).incrementAndGet();
+        checkpoints.remove(realmId);
+        usersByUsername.values().removeIf(e -> e.realmId().equals(realmId));
+        usersByEmail.values().removeIf(e -> e.realmId().equals(realmId));
+        missedKeys.clear(realmId);
+    }
+
+    /**
+     * Mark all users of one realm as stale, so that each of them is revalidated on its next access.
+     *
+     * @param realmId The realm id
+     */
+    void markStale(String realmId) {
+        usersByUsername.replaceAll((k, e) -> e.realmId().equals(realmId) ? e.asStale() : e);
+        usersByEmail.replaceAll((k, e) -> e.realmId().equals(realmId) ? e.asStale() : e);
+    }
+
+    /**
+     * Remove all users and checkpoints.
+     */
+    synchronized void clear() {
+        generations.values().forEach(AtomicLong::incrementAndGet);
+        checkpoints.clear();
+        usersByUsername.clear();
+        usersByEmail.clear();
+    }
+
+    /**
+     * Return the number of cached users.
+     *
+     * @return The number of entries in the username index
+     */
+    int size() {
+        return usersByUsername.size();
+    }
+
+    /**
+     * Return the number of cached users of one realm.
+     *
+     * @param realmId The realm id
+     * @return The number of entries of the realm in the username index
+     */
+    long size(String realmId) {
+        return usersByUsername.values().stream().filter(e -> e.realmId().equals(realmId)).count();
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    MissedKeys getMissedKeys() {
+        return missedKeys;
+    }
+
+    void setRevalidator(BiConsumer<String, ExternalUser> revalidator) {
+        this.revalidator = revalidator;
+    }
+
+    static String normalize(String value) {
+        return value == null ? null : value.toLowerCase().trim();
+    }
+}
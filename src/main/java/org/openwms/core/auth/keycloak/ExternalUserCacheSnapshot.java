@@ -0,0 +1,183 @@
+/*
+ * Copyright 2005-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openwms.core.auth.keycloak;
+
+import org.openwms.core.auth.keycloak.api.ExternalUser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+
+/**
+ * A ExternalUserCacheSnapshot writes the entries of an {@link ExternalUserCache} to disk and restores them after a restart. The file starts
+ * with a magic number and a format version, followed by one record per checkpoint of the user change feed, one record per user and a
+ * terminating marker. The checkpoints are written before the users, so that a synchronization running meanwhile resumes from a
+ * checkpoint at or before the written users. Strings are written as length prefixed UTF-8. Only profile data is written, never any
+ * credentials. A snapshot is first written to a temporary file and then moved in place, so a crash while writing never leaves a broken
+ * snapshot behind. Snapshots with an unknown version are ignored.
+ *
+ * @author Heiko Scherrer
+ */
+final class ExternalUserCacheSnapshot {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExternalUserCacheSnapshot.class);
+    private static final int MAGIC = 0x4F574B43;
+    private static final short VERSION = 2;
+    /** Snapshots of this version do not contain checkpoints. */
+    private static final short VERSION_WITHOUT_CHECKPOINTS = 1;
+    private static final int BUFFER_SIZE = 1 << 16;
+    /** Profile data is far shorter, a longer string length is treated as a corrupt file instead of being allocated. */
+    private static final int MAX_STRING_LENGTH = 1 << 16;
+    private static final byte RECORD = 1;
+    private static final byte CHECKPOINT = 2;
+    private static final byte END = 0;
+
+    private ExternalUserCacheSnapshot() {
+    }
+
+    /**
+     * Write all non-expired entries of the {@code cache} to the {@code file}.
+     *
+     * @param cache The cache to write
+     * @param file The target file, parent directories are created
+     * @return The number of written users
+     * @throws IOException In case the snapshot could not be written
+     */
+    static int write(ExternalUserCache cache, Path file) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        var tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        var count = 0;
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), BUFFER_SIZE))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            for (var checkpoint : cache.checkpoints().entrySet()) {
+                out.writeByte(CHECKPOINT);
+                writeString(out, checkpoint.getKey());
+                writeString(out, checkpoint.getValue());
+            }
+            for (var entry : cache.entries()) {
+                if (cache.isExpired(entry)) {
+                    continue;
+                }
+                var user = entry.user();
+                out.writeByte(RECORD);
+                writeString(out, entry.realmId());
+                writeString(out, user.getId());
+                writeString(out, user.getUsername());
+                writeString(out, user.getFirstName());
+                writeString(out, user.getLastName());
+                writeString(out, user.getEmail());
+                count++;
+            }
+            out.writeByte(END);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.debug("Written [{}] users to cache snapshot [{}]", count, file);
+        return count;
+    }
+
+    /**
+     * Restore the checkpoints and all users of the {@code file} into the {@code cache}, users as stale entries.
+     *
+     * @param file The snapshot file
+     * @param cache The cache to restore into
+     * @return The number of restored users, 0 if there is no usable snapshot
+     */
+    static int read(Path file, ExternalUserCache cache) {
+        var count = 0;
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE))) {
+            var magic = in.readInt();
+            var version = in.readShort();
+            if (magic != MAGIC || (version != VERSION && version != VERSION_WITHOUT_CHECKPOINTS)) {
+                LOGGER.warn("Ignoring cache snapshot [{}] with unknown format", file);
+                return 0;
+            }
+            var buffer = new byte[][]{new byte[256]};
+            var checkpoints = new HashMap<String, String>();
+            String realmId = null;
+            byte type;
+            while ((type = in.readByte()) != END) {
+                if (type == CHECKPOINT) {
+                    var checkpointRealmId = readString(in, buffer);
+                    var checkpoint = readString(in, buffer);
+                    checkpoints.put(checkpointRealmId, checkpoint);
+                    cache.restoreCheckpoint(checkpointRealmId, checkpoint);
+                    continue;
+                }
+                if (type != RECORD) {
+                    throw new IOException("Unknown record type [%d]".formatted(type));
+                }
+                realmId = intern(realmId, readString(in, buffer));
+                var user = new ExternalUser();
+                user.setId(readString(in, buffer));
+                user.setUsername(readString(in, buffer));
+                user.setFirstName(readString(in, buffer));
+                user.setLastName(readString(in, buffer));
+                user.setEmail(readString(in, buffer));
+                if (cache.restore(realmId, user, checkpoints.get(realmId))) {
+                    count++;
+                }
+            }
+            LOGGER.info("Restored [{}] users from cache snapshot [{}]", count, file);
+        } catch (NoSuchFileException e) {
+            LOGGER.debug("No cache snapshot found at [{}]", file);
+        } catch (IOException e) {
+            LOGGER.warn("Cache snapshot [{}] is incomplete, restored [{}] users: [{}]", file, count, e.getMessage());
+        }
+        return count;
+    }
+
+    /** Snapshots mostly contain one realm only, so the same realm id instance is reused for subsequent records. */
+    private static String intern(String previous, String current) {
+        return current != null && current.equals(previous) ? previous : current;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        var bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in, byte[][] buffer) throws IOException {
+        var length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > MAX_STRING_LENGTH) {
+            throw new IOException("String length [%d] exceeds the maximum of [%d], the snapshot is corrupt".formatted(length,
+                    MAX_STRING_LENGTH));
+        }
+        if (buffer[0].length < length) {
+            buffer[0] = new byte[Math.max(length, buffer[0].length * 2)];
+        }
+        in.readFully(buffer[0], 0, length);
+        return new String(buffer[0], 0, length, StandardCharsets.UTF_8);
+    }
+}
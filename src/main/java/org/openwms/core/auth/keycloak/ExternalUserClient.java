@@ -0,0 +1,222 @@
+/*
+ * Copyright 2005-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openwms.core.auth.keycloak;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.util.EntityUtils;
+import org.openwms.core.auth.keycloak.api.ExternalUser;
+import org.openwms.core.auth.keycloak.api.FindUserRequest;
+import org.openwms.core.auth.keycloak.api.FindUserResponse;
+import org.openwms.core.auth.keycloak.api.UserAuthorization;
+import org.openwms.core.auth.keycloak.api.ValidateRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Optional;
+
+import static org.openwms.core.auth.keycloak.ExternalUserProvider.ACCEPT;
+import static org.openwms.core.auth.keycloak.ExternalUserProvider.CONTENT_TYPE;
+
+/**
+ * A ExternalUserClient calls the endpoints of the external service. It does not depend on a Keycloak session and can therefore also be used
+ * from background tasks, like the revalidation of cached users.
+ *
+ * @author Heiko Scherrer
+ */
+class ExternalUserClient {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExternalUserClient.class);
+
+    private final HttpClient httpClient;
+    private final ExternalProviderConfig config;
+    private final WireNegotiation negotiation;
+    private final ExternalCallStatistics statistics;
+
+    ExternalUserClient(HttpClient httpClient, ExternalProviderConfig config, WireNegotiation negotiation,
+            ExternalCallStatistics statistics) {
+        this.httpClient = httpClient;
+        this.config = config;
+        this.negotiation = negotiation;
+        this.statistics = statistics;
+    }
+
+    /**
+     * Find a user by username.
+     *
+     * @param realmId The realm id that is used as tenantId
+     * @param username The username, is normalized to lowercase
+     * @return The user or nothing if the external service does not know the user
+     * @throws IOException In case the call failed or the external service responded with an unexpected status code
+     */
+    Optional<ExternalUser> resolveByUsername(String realmId, String username) throws IOException {
+        final var lowercasedUsername = username.toLowerCase().trim();
+        LOGGER.debug("Resolve user by username [{}] and realm [{}] in external system", lowercasedUsername, realmId);
+        return resolve(realmId, new FindUserRequest(lowercasedUsername, null));
+    }
+
+    /**
+     * Find a user by email.
+     *
+     * @param realmId The realm id that is used as tenantId
+     * @param email The email address, is normalized to lowercase
+     * @return The user or nothing if the external service does not know the user
+     * @throws IOException In case the call failed or the external service responded with an unexpected status code
+     */
+    Optional<ExternalUser> resolveByEmail(String realmId, String email) throws IOException {
+        final var lowercasedEmail = email.toLowerCase().trim();
+        LOGGER.debug("Resolve user by email [{}] and realm [{}] in external system", email, realmId);
+        return resolve(realmId, new FindUserRequest(null, lowercasedEmail));
+    }
+
+    /**
+     * A user is not found if the external service responds with {@code 404-NOT_FOUND} or with an empty body, every other status than
+     * {@code 200-OK} is an error.
+     */
+    private Optional<ExternalUser> resolve(String realmId, FindUserRequest request) throws IOException {
+        try {
+            final var httpPost = new HttpPost(config.getEndpoints(realmId).users());
+            var httpResponse = execute(httpPost, request, true);
+            try {
+                var statusCode = httpResponse.getStatusLine().getStatusCode();
+                if (statusCode == 404) {
+                    return Optional.empty();
+                }
+                if (statusCode != 200) {
+                    throw new HttpResponseException(statusCode, "Failed to get user from external service in realm [%s]".formatted(realmId));
+                }
+                var entity = httpResponse.getEntity();
+                if (entity == null || entity.getContentLength() == 0) {
+                    return Optional.empty();
+                }
+                var response = negotiation.current().decode(entity, FindUserResponse.class);
+                var user = response == null ? null : response.getExternalUser();
+                LOGGER.debug("Resolved user [{}] and realm [{}] in external system", user, realmId);
+                return Optional.ofNullable(user);
+            } finally {
+                EntityUtils.consumeQuietly(httpResponse.getEntity());
+            }
+        } catch (IOException | RuntimeException e) {
+            ExternalUserTracing.recordFailure(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Load the roles, groups and attributes of a user. An external service that does not know the user or does not implement the
+     * endpoint responds with {@code 404-NOT_FOUND}, what results in an empty authorization.
+     *
+     * @param realmId The realm id that is used as tenantId
+     * @param username The username, is normalized to lowercase
+     * @return The authorization or nothing if the call failed
+     */
+    Optional<UserAuthorization> resolveAuthorization(String realmId, String username) {
+        final var lowercasedUsername = username.toLowerCase().trim();
+        LOGGER.debug("Resolve authorization of user [{}] and realm [{}] in external system", lowercasedUsername, realmId);
+        try {
+            final var httpPost = new HttpPost(config.getEndpoints(realmId).authorization());
+            var httpResponse = execute(httpPost, new FindUserRequest(lowercasedUsername, null), true);
+            try {
+                var statusCode = httpResponse.getStatusLine().getStatusCode();
+                if (statusCode == 200) {
+                    return Optional.of(negotiation.current().decode(httpResponse.getEntity(), UserAuthorization.class));
+                }
+                if (statusCode == 404) {
+                    return Optional.of(new UserAuthorization());
+                }
+                LOGGER.error("Failed to get authorization from external service, by username [{}], and realm [{}], status code [{}]",
+                        lowercasedUsername, realmId, statusCode);
+            } finally {
+                EntityUtils.consumeQuietly(httpResponse.getEntity());
+            }
+        } catch (Exception e) {
+            ExternalUserTracing.recordFailure(e);
+            LOGGER.error(e.getMessage(), e);
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Validate the credentials of a user.
+     *
+     * @param realmId The realm id that is used as tenantId
+     * @param username The username, is normalized to lowercase
+     * @param rawPassword The password as entered by the user
+     * @return {@literal true} if the external service accepted the credentials with a {@code 2xx} status, {@literal false} if it rejected
+     * them with a {@code 4xx} status
+     * @throws IOException In case the call failed, the external service responded with {@code 429-TOO_MANY_REQUESTS} or a {@code 5xx}
+     * status, so that it is unknown whether the credentials are valid
+     */
+    boolean validate(String realmId, String username, String rawPassword) throws IOException {
+        final var lowercasedUsername = username.toLowerCase().trim();
+        LOGGER.debug("Validate credentials in external system for user with username [{}] and tenantId [{}]", lowercasedUsername, realmId);
+        try {
+            final var httpPost = new HttpPost(config.getEndpoints(realmId).validate());
+            var httpResponse = execute(httpPost, new ValidateRequest(lowercasedUsername, rawPassword.toCharArray()), false);
+            EntityUtils.consumeQuietly(httpResponse.getEntity());
+            var statusCode = httpResponse.getStatusLine().getStatusCode();
+            if (statusCode > 199 && statusCode < 300) {
+                return true;
+            }
+            if (statusCode > 399 && statusCode < 500 && statusCode != 429) {
+                return false;
+            }
+            throw new HttpResponseException(statusCode, "Failed to validate credentials with external service in realm [%s]"
+                    .formatted(realmId));
+        } catch (IOException | RuntimeException e) {
+            ExternalUserTracing.recordFailure(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Post the {@code body} encoded with the currently negotiated {@link WireCodec}. If the external service does not support the binary
+     * format and responds with {@code 415-UNSUPPORTED_MEDIA_TYPE}, the request is repeated with JSON and the {@link WireNegotiation}
+     * remembers to use JSON for the following calls. Both attempts count as one call in the {@link ExternalCallStatistics}.
+     */
+    private HttpResponse execute(HttpPost httpPost, Object body, boolean expectBody) throws IOException {
+        ExternalUserTracing.inject(httpPost);
+        HttpResponse httpResponse;
+        statistics.started();
+        try {
+            var codec = negotiation.current();
+            httpResponse = httpClient.execute(prepare(httpPost, body, codec, expectBody));
+            if (httpResponse.getStatusLine().getStatusCode() == 415 && negotiation.rejected(codec)) {
+                EntityUtils.consumeQuietly(httpResponse.getEntity());
+                httpResponse = httpClient.execute(prepare(httpPost, body, WireCodec.json(), expectBody));
+            }
+        } catch (IOException | RuntimeException e) {
+            statistics.failed(e);
+            throw e;
+        }
+        statistics.finished(httpResponse.getStatusLine().getStatusCode());
+        ExternalUserTracing.recordStatus(httpResponse.getStatusLine().getStatusCode());
+        return httpResponse;
+    }
+
+    private HttpPost prepare(HttpPost httpPost, Object body, WireCodec wireCodec, boolean expectBody) throws IOException {
+        httpPost.setHeader(CONTENT_TYPE, wireCodec.getContentType());
+        if (expectBody) {
+            httpPost.setHeader(ACCEPT, wireCodec.getAccept());
+        }
+        httpPost.setEntity(wireCodec.encode(body));
+        httpPost.setConfig(config.getRequestConfig());
+        return httpPost;
+    }
+}
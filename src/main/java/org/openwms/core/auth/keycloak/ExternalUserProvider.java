@@ -15,13 +15,8 @@
  */
 package org.openwms.core.auth.keycloak;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.http.client.HttpClient;
-import org.apache.http.client.config.RequestConfig;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
 import org.keycloak.component.ComponentModel;
-import org.keycloak.connections.httpclient.HttpClientProvider;
 import org.keycloak.credential.CredentialInput;
 import org.keycloak.credential.CredentialInputValidator;
 import org.keycloak.models.KeycloakSession;
@@ -30,24 +25,29 @@ import org.keycloak.models.UserModel;
 import org.keycloak.models.credential.PasswordCredentialModel;
 import org.keycloak.storage.StorageId;
 import org.keycloak.storage.UserStorageProvider;
-import org.keycloak.storage.adapter.AbstractUserAdapter;
 import org.keycloak.storage.user.UserLookupProvider;
-import org.openwms.core.auth.keycloak.api.FindUserRequest;
-import org.openwms.core.auth.keycloak.api.FindUserResponse;
-import org.openwms.core.auth.keycloak.api.ValidateRequest;
+import org.openwms.core.auth.keycloak.AuditEvent.Outcome;
+import org.openwms.core.auth.keycloak.AuditEvent.Type;
+import org.openwms.core.auth.keycloak.ExternalUserTracing.CacheOutcome;
+import org.openwms.core.auth.keycloak.api.UserAuthorization;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.net.URI;
+import java.io.IOException;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
 /**
  * A ExternalUserProvider is the implementation of the required Keycloak Provider interfaces in order to authenticate a user. It builds up
  * an internal cache for users, that should be purged continuously (Keycloak Cache policy). Two {@link ConcurrentHashMap}s are used and
  * synchronized for the cache. The user could log in with an email address or by username, hence not all user information is always
- * available.
+ * available. Before the external service is asked, the session-free {@link ExternalUserCache} of the component is looked up, that is also
+ * fed by the user change feed. Roles, groups and attributes are not part of the lookup, if enabled they are loaded by the
+ * {@link ExternalUserAdapter} on first access and cached in the {@link UserAuthorizationCache}. Lookups that are not served from the
+ * per-session cache and all credential validations are recorded by the {@link AuditPipeline}.
  *
  * @author Heiko Scherrer
  * @see org.keycloak.storage.UserStorageProvider
@@ -63,17 +63,29 @@ public class ExternalUserProvider implements UserStorageProvider, UserLookupProv
 
     private final KeycloakSession keycloakSession;
     private final ComponentModel model;
-    private final HttpClient httpClient;
+    private final ExternalUserClient client;
+    private final ExternalUserCache userCache;
+    private final LoginThrottle throttle;
+    private final UserAuthorizationCache authorizationCache;
+    private final Set<String> authorizationAttributes;
+    private final AuditPipeline audit;
     private final Map<CombinedUserKey, UserModel> usersMap = new ConcurrentHashMap<>();
     private final Map<String, UserModel> usersMapByEmail = new ConcurrentHashMap<>();
 
     /**
      * {@inheritDoc}
      */
-    public ExternalUserProvider(KeycloakSession keycloakSession, ComponentModel componentModel) {
+    public ExternalUserProvider(KeycloakSession keycloakSession, ComponentModel componentModel, ExternalProviderConfig config,
+            WireNegotiation negotiation, HttpClient httpClient, ExternalUserCache userCache, LoginThrottle throttle, UserAuthorizationCache authorizationCache,
+            ExternalCallStatistics statistics, AuditPipeline audit) {
         this.keycloakSession = keycloakSession;
         this.model = componentModel;
-        this.httpClient = keycloakSession.getProvider(HttpClientProvider.class).getHttpClient();
+        this.userCache = userCache;
+        this.throttle = throttle;
+        this.authorizationCache = authorizationCache;
+        this.authorizationAttributes = config.getAuthorizationAttributes();
+        this.audit = audit;
+        this.client = new ExternalUserClient(httpClient, config, negotiation, statistics);
     }
 
     /**
@@ -85,7 +97,31 @@ public class ExternalUserProvider implements UserStorageProvider, UserLookupProv
             LOGGER.error("Credential type is not supported: [{}]", credentialInput.getType());
             return false;
         }
-        return validate(realmModel, userModel.getUsername(), credentialInput.getChallengeResponse());
+        final var start = System.nanoTime();
+        final var span = ExternalUserTracing.startSpan("validate", realmModel.getId());
+        try (var ignored = ExternalUserTracing.activate(span)) {
+            if (!throttle.tryAcquire(realmModel.getId(), userModel.getUsername())) {
+                LOGGER.debug("Too many login attempts for user [{}] in realm [{}], rejected without calling the external service",
+                        userModel.getUsername(), realmModel.getId());
+                span.setAttribute(ExternalUserTracing.THROTTLED, true);
+                audit.record(Type.VALIDATE, Outcome.THROTTLED, realmModel.getId(), userModel.getUsername(), null, start);
+                return false;
+            }
+            boolean valid;
+            try {
+                valid = client.validate(realmModel.getId(), userModel.getUsername(), credentialInput.getChallengeResponse());
+            } catch (IOException e) {
+                LOGGER.error("Failed to validate credentials of user [{}] in realm [{}]: [{}]", userModel.getUsername(), realmModel.getId(),
+                        e.getMessage(), e);
+                audit.record(Type.VALIDATE, Outcome.ERROR, realmModel.getId(), userModel.getUsername(), null, start);
+                return false;
+            }
+            audit.record(Type.VALIDATE, valid ? Outcome.SUCCESS : Outcome.REJECTED, realmModel.getId(), userModel.getUsername(), null,
+                    start);
+            return valid;
+        } finally {
+            span.end();
+        }
     }
 
     /**
@@ -112,36 +148,108 @@ public class ExternalUserProvider implements UserStorageProvider, UserLookupProv
     @Override
     public UserModel getUserByEmail(RealmModel realm, String email) {
         LOGGER.debug("Find user by email [{}] in realm [{}]", email, realm.getId());
-        final var user = usersMapByEmail.get(email);
-        if (user != null) {
-            return user;
-        }
-        final var userOpt = resolveByEmail(realm, email);
-        if (userOpt.isPresent()) {
-            LOGGER.info("Found user by email in external system [{}]", userOpt.get());
-            usersMapByEmail.put(email, userOpt.get());
-            usersMap.computeIfAbsent(new CombinedUserKey(userOpt.get().getUsername(), realm.getId()), k -> userOpt.get());
-            return userOpt.get();
+        final var start = System.nanoTime();
+        final var span = ExternalUserTracing.startSpan("resolveByEmail", realm.getId());
+        try (var ignored = ExternalUserTracing.activate(span)) {
+            final var user = usersMapByEmail.get(email);
+            if (user != null) {
+                span.setAttribute(ExternalUserTracing.CACHE_OUTCOME, CacheOutcome.SESSION.name());
+                return user;
+            }
+            final var cached = userCache.findByEmail(realm.getId(), email);
+            final var cacheOutcome = cached.isPresent() ? CacheOutcome.SHARED : CacheOutcome.MISS;
+            span.setAttribute(ExternalUserTracing.CACHE_OUTCOME, cacheOutcome.name());
+            var found = cached;
+            var failed = false;
+            if (found.isEmpty()) {
+                try {
+                    found = client.resolveByEmail(realm.getId(), email);
+                    found.ifPresent(u -> userCache.put(realm.getId(), u));
+                } catch (IOException e) {
+                    LOGGER.error("Failed to find user by email [{}] in realm [{}]: [{}]", email, realm.getId(), e.getMessage(), e);
+                    failed = true;
+                }
+            }
+            final var userOpt = found.map(u -> ExternalUserAdapter.of(keycloakSession, realm, model, u,
+                    authorizationLoader(realm, u.getUsername()), authorizationAttributes));
+            audit.record(Type.LOOKUP, lookupOutcome(userOpt.isPresent(), failed), realm.getId(), email, cacheOutcome.name(), start);
+            if (userOpt.isPresent()) {
+                LOGGER.debug("Found user by email in external system [{}]", userOpt.get());
+                usersMapByEmail.put(email, userOpt.get());
+                usersMap.computeIfAbsent(new CombinedUserKey(userOpt.get().getUsername(), realm.getId()), k -> userOpt.get());
+                return userOpt.get();
+            }
+            return null;
+        } finally {
+            span.end();
         }
-        return null;
     }
 
     private UserModel getUserByUsernameInternal(RealmModel realm, String username) {
-        final var key = new CombinedUserKey(username, realm.getId());
-        final var user = usersMap.get(key);
-        if (user != null) {
-            return user;
-        }
-        final var userOpt = resolveByUsername(realm, username);
-        if (userOpt.isPresent()) {
-            LOGGER.info("Found user by username in external system [{}]", userOpt.get());
-            usersMap.put(key, userOpt.get());
-            if (userOpt.get().getEmail() != null) {
-                usersMapByEmail.put(userOpt.get().getEmail(), userOpt.get());
+        final var start = System.nanoTime();
+        final var span = ExternalUserTracing.startSpan("resolveByUsername", realm.getId());
+        try (var ignored = ExternalUserTracing.activate(span)) {
+            final var key = new CombinedUserKey(username, realm.getId());
+            final var user = usersMap.get(key);
+            if (user != null) {
+                span.setAttribute(ExternalUserTracing.CACHE_OUTCOME, CacheOutcome.SESSION.name());
+                return user;
             }
-            return userOpt.get();
+            final var cached = userCache.findByUsername(realm.getId(), username);
+            final var cacheOutcome = cached.isPresent() ? CacheOutcome.SHARED : CacheOutcome.MISS;
+            span.setAttribute(ExternalUserTracing.CACHE_OUTCOME, cacheOutcome.name());
+            var found = cached;
+            var failed = false;
+            if (found.isEmpty()) {
+                try {
+                    found = client.resolveByUsername(realm.getId(), username);
+                    found.ifPresent(u -> userCache.put(realm.getId(), u));
+                } catch (IOException e) {
+                    LOGGER.error("Failed to find user by username [{}] in realm [{}]: [{}]", username, realm.getId(), e.getMessage(), e);
+                    failed = true;
+                }
+            }
+            final var userOpt = found.map(u -> ExternalUserAdapter.of(keycloakSession, realm, model, u,
+                    authorizationLoader(realm, u.getUsername()), authorizationAttributes));
+            audit.record(Type.LOOKUP, lookupOutcome(userOpt.isPresent(), failed), realm.getId(), username, cacheOutcome.name(), start);
+            if (userOpt.isPresent()) {
+                LOGGER.debug("Found user by username in external system [{}]", userOpt.get());
+                usersMap.put(key, userOpt.get());
+                if (userOpt.get().getEmail() != null) {
+                    usersMapByEmail.put(userOpt.get().getEmail(), userOpt.get());
+                }
+                return userOpt.get();
+            }
+            return null;
+        } finally {
+            span.end();
+        }
+    }
+
+    private static Outcome lookupOutcome(boolean found, boolean failed) {
+        if (failed) {
+            return Outcome.ERROR;
         }
-        return null;
+        return found ? Outcome.SUCCESS : Outcome.NOT_FOUND;
+    }
+
+    private Supplier<Optional<UserAuthorization>> authorizationLoader(RealmModel realm, String username) {
+        if (authorizationCache == null) {
+            return null;
+        }
+        final var realmId = realm.getId();
+        return () -> {
+            final var start = System.nanoTime();
+            final var span = ExternalUserTracing.startSpan("resolveAuthorization", realmId);
+            try (var ignored = ExternalUserTracing.activate(span)) {
+                var authorization = authorizationCache.get(realmId, username, () -> client.resolveAuthorization(realmId, username));
+                audit.record(Type.AUTHORIZATION, authorization.isPresent() ? Outcome.SUCCESS : Outcome.ERROR, realmId, username, null,
+                        start);
+                return authorization;
+            } finally {
+                span.end();
+            }
+        };
     }
 
     /**
@@ -173,88 +281,4 @@ public class ExternalUserProvider implements UserStorageProvider, UserLookupProv
     public boolean isConfiguredFor(RealmModel realm, UserModel user, String credentialType) {
         return supportsCredentialType(credentialType);
     }
-
-    private Optional<AbstractUserAdapter> resolveByUsername(RealmModel realmModel, String username) {
-        final var lowercasedUsername = username.toLowerCase().trim();
-        LOGGER.debug("Resolve user by username [{}] and realm [{}] in external system", lowercasedUsername, realmModel.getId());
-        final var om = new ObjectMapper();
-        try {
-            final var httpPost = new HttpPost(URI.create("%s://%s:%s/%s".formatted(
-                    model.getConfig().getFirst("restSchema"),
-                    model.getConfig().getFirst("serviceHostname"),
-                    model.getConfig().getFirst("servicePort"),
-                    "/auth/" + realmModel.getId() + "/users"
-            )));
-            httpPost.setHeader(CONTENT_TYPE, APPLICATION_JSON);
-            httpPost.setHeader(ACCEPT, APPLICATION_JSON);
-            httpPost.setEntity(new StringEntity(om.writeValueAsString(new FindUserRequest(lowercasedUsername, null))));
-            httpPost.setConfig(getDefaultRequestConfig());
-            var httpResponse = httpClient.execute(httpPost);
-            if (httpResponse.getStatusLine().getStatusCode() == 200) {
-                var user = om.readValue(httpResponse.getEntity().getContent(), FindUserResponse.class).getExternalUser();
-                LOGGER.info("Resolved user [{}] and realm [{}] in external system", user, realmModel.getId());
-                return Optional.of(ExternalUserAdapter.of(keycloakSession, realmModel, model, user));
-            }
-            LOGGER.error("Failed to get user from external service, by username [{}], and realm [{}], status code [{}]", lowercasedUsername,
-                    realmModel.getId(), httpResponse.getStatusLine().getStatusCode());
-        } catch (Exception e) {
-            LOGGER.error(e.getMessage(), e);
-        }
-        return Optional.empty();
-    }
-
-    private Optional<AbstractUserAdapter> resolveByEmail(RealmModel realmModel, String email) {
-        final var lowercasedEmail = email.toLowerCase().trim();
-        LOGGER.debug("Resolve user by email [{}] and realm [{}] in external system", email, realmModel.getId());
-        final var om = new ObjectMapper();
-        try {
-            final var httpPost = new HttpPost(URI.create("%s://%s:%s/%s".formatted(
-                    model.getConfig().getFirst("restSchema"),
-                    model.getConfig().getFirst("serviceHostname"),
-                    model.getConfig().getFirst("servicePort"),
-                    "/auth/" + realmModel.getId() + "/users"
-            )));
-            httpPost.setHeader(CONTENT_TYPE, APPLICATION_JSON);
-            httpPost.setHeader(ACCEPT, APPLICATION_JSON);
-            httpPost.setEntity(new StringEntity(om.writeValueAsString(new FindUserRequest(null, lowercasedEmail))));
-            httpPost.setConfig(getDefaultRequestConfig());
-            var httpResponse = httpClient.execute(httpPost);
-            if (httpResponse.getStatusLine().getStatusCode() == 200) {
-                var user = om.readValue(httpResponse.getEntity().getContent(), FindUserResponse.class).getExternalUser();
-                LOGGER.info("Resolved user [{}] and realm [{}] in external system", user, realmModel.getId());
-                return Optional.of(ExternalUserAdapter.of(keycloakSession, realmModel, model, user));
-            }
-            LOGGER.error("Failed to get user from external service, by email [{}], and realm [{}], status code [{}]", email,
-                    realmModel.getId(), httpResponse.getStatusLine().getStatusCode());
-        } catch (Exception e) {
-            LOGGER.error(e.getMessage(), e);
-        }
-        return Optional.empty();
-    }
-
-    private boolean validate(RealmModel realmModel, String username, String rawPassword) {
-        final var lowercasedUsername = username.toLowerCase().trim();
-        LOGGER.info("Validate credentials in external system for user with username [{}] and tenantId [{}]", lowercasedUsername, realmModel.getId());
-        final var om = new ObjectMapper();
-        try {
-            final var httpPost = new HttpPost(URI.create("%s://%s:%s/%s".formatted(
-                    model.getConfig().getFirst("restSchema"),
-                    model.getConfig().getFirst("serviceHostname"),
-                    model.getConfig().getFirst("servicePort"),
-                    "/auth/" + realmModel.getId() + "/users/validate"
-            )));
-            httpPost.setHeader(CONTENT_TYPE, APPLICATION_JSON);
-            httpPost.setEntity(new StringEntity(om.writeValueAsString(new ValidateRequest(lowercasedUsername, rawPassword.toCharArray()))));
-            httpPost.setConfig(getDefaultRequestConfig());
-            var httpResponse = httpClient.execute(httpPost);
-            return httpResponse.getStatusLine().getStatusCode() > 199 && httpResponse.getStatusLine().getStatusCode() < 300;
-        } catch (Exception e) {
-            LOGGER.error("Failed to validate credentials with message [{}]", e.getMessage(), e);
-            return false;
-        }
-    }
-
-    private RequestConfig getDefaultRequestConfig() {
-        return RequestConfig.custom().setConnectTimeout(3000).setConnectionRequestTimeout(3000).setSocketTimeout(3000).build();
-    }
-}
\ No newline at end of file
+}
@@ -15,32 +15,114 @@
  */
 package org.openwms.core.auth.keycloak;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import org.apache.http.client.HttpClient;
+import org.keycloak.Config;
 import org.keycloak.component.ComponentModel;
+import org.keycloak.component.ComponentValidationException;
+import org.keycloak.connections.httpclient.HttpClientProvider;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.PostMigrationEvent;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.provider.ProviderConfigurationBuilder;
+import org.keycloak.storage.UserStorageProvider;
 import org.keycloak.storage.UserStorageProviderFactory;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.ImportSynchronization;
+import org.keycloak.storage.user.SynchronizationResult;
+import org.keycloak.truststore.TruststoreProvider;
+import org.openwms.core.auth.keycloak.api.WireFormat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.regex.Pattern;
 
 /**
- * A ExternalUserStorageProviderFactory.
+ * A ExternalUserStorageProviderFactory creates the {@link ExternalUserProvider}s and owns the session-free {@link ExternalUserCache} of
+ * each configured component. As an {@link ImportSynchronization} it reads the user change feed of the external service, whereas a full
+ * synchronization starts from the beginning and a periodic synchronization resumes from the checkpoint kept by the user cache of this
+ * node and its snapshot. If a snapshot directory is configured for the SPI, the user caches are periodically written to disk and restored
+ * in the background when the component is used the first time after a restart. Components with warm connections get their own
+ * {@link ExternalConnectionPool}, that is warmed up once Keycloak has started and kept warm in the background. A configuration change only
+ * rebuilds the state that depends on a changed setting, replaced connection pools and audit pipelines are closed once the requests in
+ * flight have finished.
  *
  * @author Heiko Scherrer
  */
-public class ExternalUserStorageProviderFactory implements UserStorageProviderFactory<ExternalUserProvider> {
+public class ExternalUserStorageProviderFactory implements UserStorageProviderFactory<ExternalUserProvider>, ImportSynchronization {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ExternalUserStorageProviderFactory.class);
     public static final String PROVIDER_ID = "external-http";
+    private static final long WARM_UP_INTERVAL_SECONDS = ExternalConnectionPool.KEEP_WARM_SECONDS / 2;
+    private static final long RETIRE_GRACE_SECONDS = 10;
+    private static final long RETIRE_MAX_SECONDS = 600;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+    private static final int REVALIDATION_THREADS = 4;
+    private static final int REVALIDATION_QUEUE_SIZE = 256;
+    /** SPI option with the directory of the cache snapshots, e.g. {@code --spi-storage-external-http-cache-snapshot-directory}. */
+    static final String CACHE_SNAPSHOT_DIRECTORY = "cache-snapshot-directory";
+    /** SPI option with the directory of the audit files, e.g. {@code --spi-storage-external-http-audit-directory}. */
+    static final String AUDIT_DIRECTORY = "audit-directory";
+    private static final Pattern FILE_NAME = Pattern.compile("[A-Za-z0-9_-]+");
 
     private final List<ProviderConfigProperty> configMetadata;
+    private final Map<String, ExternalProviderConfig> configs = new ConcurrentHashMap<>();
+    private final Map<String, WireNegotiation> wireNegotiations = new ConcurrentHashMap<>();
+    private final Map<String, ExternalUserCache> userCaches = new ConcurrentHashMap<>();
+    private final Map<String, ScheduledFuture<?>> snapshotWriters = new ConcurrentHashMap<>();
+    private final Map<String, LoginThrottle> throttles = new ConcurrentHashMap<>();
+    private final Map<String, UserAuthorizationCache> authorizationCaches = new ConcurrentHashMap<>();
+    private final Map<String, ExternalCallStatistics> callStatistics = new ConcurrentHashMap<>();
+    private final Map<String, ExternalConnectionPool> connectionPools = new ConcurrentHashMap<>();
+    private final Map<String, ScheduledFuture<?>> connectionWarmers = new ConcurrentHashMap<>();
+    private final Map<String, AuditPipeline> auditPipelines = new ConcurrentHashMap<>();
+    private final Set<Retired> retired = ConcurrentHashMap.newKeySet();
+    private KeycloakSessionFactory sessionFactory;
+    private ScheduledExecutorService executor;
+    private ExecutorService revalidator;
+    /** The HTTP client of Keycloak is shared by all sessions, it is kept for background tasks that run without a session. */
+    private volatile HttpClient keycloakHttpClient;
+    private List<String> unsupportedHttpClientSettings = List.of();
+    private Path snapshotDirectory;
+    private Path auditDirectory;
+
+    /**
+     * A resource that has been replaced after a configuration change but may still be used by requests in flight.
+     *
+     * @param idle Whether the resource is not used anymore
+     * @param close Closes the resource
+     * @param deadline The time in nanos the resource is closed at the latest
+     */
+    private record Retired(BooleanSupplier idle, Runnable close, long deadline) {
+    }
 
     public ExternalUserStorageProviderFactory() {
         configMetadata = ProviderConfigurationBuilder.create()
                 .property()
-                .name("restSchema")
+                .name(ExternalProviderConfig.REST_SCHEMA)
                 .label("Rest schema")
                 .type(ProviderConfigProperty.STRING_TYPE)
                 .defaultValue("http")
@@ -48,7 +130,7 @@ public class ExternalUserStorageProviderFactory implements UserStorageProviderFa
 
                 .add()
                 .property()
-                .name("serviceHostname")
+                .name(ExternalProviderConfig.SERVICE_HOSTNAME)
                 .label("Service hostname")
                 .type(ProviderConfigProperty.STRING_TYPE)
                 .defaultValue("localhost")
@@ -56,23 +138,669 @@ public class ExternalUserStorageProviderFactory implements UserStorageProviderFa
 
                 .add()
                 .property()
-                .name("servicePort")
+                .name(ExternalProviderConfig.SERVICE_PORT)
                 .label("Service port")
                 .type(ProviderConfigProperty.STRING_TYPE)
                 .defaultValue("8080")
                 .helpText("Port of the external service")
 
+                .add()
+                .property()
+                .name(ExternalProviderConfig.CACHE_TTL_SECONDS)
+                .label("User cache TTL")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("300")
+                .helpText("Seconds a resolved user is kept in the session-free user cache, 0 keeps users until the next cache flush")
+
+                .add()
+                .property()
+                .name(ExternalProviderConfig.WIRE_FORMAT)
+                .label("Wire format")
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .options(WireFormat.JSON.name(), WireFormat.CBOR.name())
+                .defaultValue(WireFormat.JSON.name())
+                .helpText("Preferred encoding of request and response bodies, the external service may always respond with JSON")
+
+                .add()
+                .property()
+                .name(ExternalProviderConfig.CACHE_SNAPSHOT_INTERVAL_SECONDS)
+                .label("Cache snapshot interval")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("300")
+                .helpText("Seconds between two snapshots of the user cache, only used if a snapshot directory is configured for the SPI")
+
+                .add()
+                .property()
+                .name(ExternalProviderConfig.THROTTLE_USER_ATTEMPTS_PER_MINUTE)
+                .label("User login throttle")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("0")
+                .helpText("Credential validations per user and minute sent to the external service, 0 disables the limit")
+
+                .add()
+                .property()
+                .name(ExternalProviderConfig.THROTTLE_USER_BURST)
+                .label("User login burst")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("5")
+                .helpText("Credential validations a user may do at once before the user login throttle applies")
+
+                .add()
+                .property()
+                .name(ExternalProviderConfig.THROTTLE_REALM_ATTEMPTS_PER_SECOND)
+                .label("Realm login throttle")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("0")
+                .helpText("Credential validations per realm and second sent to the external service, 0 disables the limit")
+
+                .add()
+                .property()
+                .name(ExternalProviderConfig.THROTTLE_REALM_BURST)
+                .label("Realm login burst")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("50")
+                .helpText("Credential validations a realm may do at once before the realm login throttle applies")
+
+                .add()
+                .property()
+                .name(ExternalProviderConfig.AUTHORIZATION_ENABLED)
+                .label("Load authorization")
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .defaultValue("false")
+                .helpText("Load roles and groups of users from the User Authorization Endpoint on first access")
+
+                .add()
+                .property()
+                .name(ExternalProviderConfig.AUTHORIZATION_CACHE_TTL_SECONDS)
+                .label("Authorization cache TTL (seconds)")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("60")
+                .helpText("Time in seconds loaded roles, groups and attributes are cached, 0 disables the cache")
+
+                .add()
+                .property()
+                .name(ExternalProviderConfig.AUTHORIZATION_ATTRIBUTES)
+                .label("Authorization attributes")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("Comma separated user attributes provided by the User Authorization Endpoint, others never call it")
+
+                .add()
+                .property()
+                .name(ExternalProviderConfig.WARM_CONNECTIONS)
+                .label("Warm connections")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("0")
+                .helpText("Connections kept open in an own pool without proxy or client keystore, 0 uses the connection pool of Keycloak")
+
+                .add()
+                .property()
+                .name(ExternalProviderConfig.MAX_CONNECTIONS)
+                .label("Max connections")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("20")
+                .helpText("Maximum number of connections of the own connection pool, must be greater than the warm connections")
+
+                .add()
+                .property()
+                .name(ExternalProviderConfig.DNS_CACHE_TTL_SECONDS)
+                .label("DNS cache TTL (seconds)")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("60")
+                .helpText("Time in seconds the address of the external service is cached by the own connection pool")
+
+                .add()
+                .property()
+                .name(ExternalProviderConfig.AUDIT_SINK)
+                .label("Audit sink")
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .options(AuditSink.Type.LOG.name(), AuditSink.Type.FILE.name(), AuditSink.Type.NONE.name())
+                .defaultValue(AuditSink.Type.LOG.name())
+                .helpText("Where lookups and credential validations are audited, FILE requires an audit directory configured for the SPI")
+
+                .add()
+                .property()
+                .name(ExternalProviderConfig.AUDIT_SAMPLE_RATE)
+                .label("Audit sample rate")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("1.0")
+                .helpText("Ratio between 0 and 1 of successful actions that are audited, failures are always audited")
+
+                .add()
+                .property()
+                .name(ExternalProviderConfig.AUDIT_MASKING)
+                .label("Audit masking")
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .options(AuditMasking.PARTIAL.name(), AuditMasking.HASH.name(), AuditMasking.NONE.name())
+                .defaultValue(AuditMasking.PARTIAL.name())
+                .helpText("How usernames and emails are written to the audit sink, HASH requires the audit hash secret")
+
+                .add()
+                .property()
+                .name(ExternalProviderConfig.AUDIT_HASH_SECRET)
+                .label("Audit hash secret")
+                .type(ProviderConfigProperty.PASSWORD)
+                .secret(true)
+                .helpText("Secret of at least 16 characters the usernames and emails are hashed with by the audit masking HASH")
+
                 .add()
                 .build();
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Find the settings of the HTTP client of Keycloak that an own connection pool would bypass. If any is configured, components with warm
+     * connections use the HTTP client of Keycloak instead. The directories of the cache snapshots and audit files are settings of the
+     * server and not of a component, so that realm administrators cannot choose where files are written to.
+     */
+    @Override
+    public void init(Config.Scope config) {
+        snapshotDirectory = directory(config, CACHE_SNAPSHOT_DIRECTORY);
+        auditDirectory = directory(config, AUDIT_DIRECTORY);
+        unsupportedHttpClientSettings = ExternalConnectionPool.unsupportedSettings(Config.scope("connectionsHttpClient", "default"));
+        if (!unsupportedHttpClientSettings.isEmpty()) {
+            LOGGER.warn("The HTTP client of Keycloak is configured with [{}], warm connections are not used",
+                    unsupportedHttpClientSettings);
+        }
+    }
+
+    private static Path directory(Config.Scope config, String option) {
+        var directory = config.get(option);
+        if (directory == null || directory.isBlank()) {
+            return null;
+        }
+        try {
+            var path = Path.of(directory.trim());
+            LOGGER.info("Option [{}] is set to [{}]", option, path);
+            return path;
+        } catch (InvalidPathException e) {
+            LOGGER.error("Option [{}] is not a valid directory [{}] and is ignored", option, directory);
+            return null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Start the background executor for cache snapshots and connection warm-up, and the bounded pool that revalidates stale users. Warm
+     * connections are opened as soon as the database has been migrated, before Keycloak reports to be ready.
+     */
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        this.sessionFactory = factory;
+        this.executor = Executors.newSingleThreadScheduledExecutor(daemonThreads("-cache"));
+        var revalidationPool = new ThreadPoolExecutor(REVALIDATION_THREADS, REVALIDATION_THREADS, 1, TimeUnit.MINUTES,
+                new ArrayBlockingQueue<>(REVALIDATION_QUEUE_SIZE), daemonThreads("-revalidate"));
+        revalidationPool.allowCoreThreadTimeOut(true);
+        this.revalidator = revalidationPool;
+        factory.register(event -> {
+            if (event instanceof PostMigrationEvent) {
+                warmUpConnections();
+            }
+        });
+    }
+
+    private static ThreadFactory daemonThreads(String suffix) {
+        return r -> {
+            var thread = new Thread(r, PROVIDER_ID + suffix);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private void warmUpConnections() {
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> session.realms().getRealmsStream()
+                .flatMap(realm -> realm.getComponentsStream(realm.getId(), UserStorageProvider.class.getName()))
+                .filter(c -> PROVIDER_ID.equals(c.getProviderId()))
+                .forEach(component -> {
+                    try {
+                        var config = getConfig(component);
+                        if (usesConnectionPool(config)) {
+                            var pool = getConnectionPool(session, component.getId(), config);
+                            LOGGER.info("Opened [{}] of [{}] warm connections to [{}] for component [{}]", pool.warmUp(),
+                                    pool.getWarmConnections(), config.getServiceHost(), component.getName());
+                        }
+                    } catch (Exception e) {
+                        LOGGER.warn("Failed to warm up connections of component [{}]: [{}]", component.getName(), e.getMessage());
+                    }
+                }));
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Stop the background executor and write the final cache snapshots. The snapshots are only written after the executor has terminated,
+     * so that a periodic snapshot that is still running cannot write the same file concurrently.
+     */
+    @Override
+    public void close() {
+        snapshotWriters.values().forEach(f -> f.cancel(false));
+        connectionWarmers.values().forEach(f -> f.cancel(false));
+        var terminated = true;
+        if (revalidator != null) {
+            revalidator.shutdownNow();
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+            try {
+                terminated = executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                terminated = false;
+            }
+        }
+        if (terminated) {
+            userCaches.forEach((id, cache) -> {
+                snapshotFile(id).ifPresent(file -> writeSnapshot(cache, file));
+            });
+        } else {
+            LOGGER.warn("Background tasks did not terminate within [{}] seconds, final cache snapshots are not written",
+                    SHUTDOWN_TIMEOUT_SECONDS);
+        }
+        connectionPools.values().forEach(ExternalConnectionPool::close);
+        auditPipelines.values().forEach(AuditPipeline::close);
+        retired.forEach(r -> r.close().run());
+        retired.clear();
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public ExternalUserProvider create(KeycloakSession keycloakSession, ComponentModel componentModel) {
-        LOGGER.info("Creating custom user federation provider.");
-        return new ExternalUserProvider(keycloakSession, componentModel);
+        LOGGER.debug("Creating custom user federation provider.");
+        var config = getConfig(componentModel);
+        return new ExternalUserProvider(keycloakSession, componentModel, config, getWireNegotiation(componentModel.getId(), config),
+                getHttpClient(keycloakSession, componentModel.getId(), config), getUserCache(componentModel.getId(), config),
+                getThrottle(componentModel, config), getAuthorizationCache(componentModel.getId(), config),
+                getCallStatistics(componentModel.getId()), getAuditPipeline(componentModel, config));
+    }
+
+    private AuditPipeline getAuditPipeline(ComponentModel componentModel, ExternalProviderConfig config) {
+        var settings = config.getAuditSettings();
+        if (settings.sink() == AuditSink.Type.NONE) {
+            return AuditPipeline.disabled();
+        }
+        return auditPipelines.computeIfAbsent(componentModel.getId(), id -> new AuditPipeline(componentModel.getName(),
+                createAuditSink(id, settings), settings, auditDroppedCounter(componentModel)));
+    }
+
+    private static Counter auditDroppedCounter(ComponentModel componentModel) {
+        return Counter.builder("keycloak.external_http.audit.dropped")
+                .description("Audit events dropped because the audit buffer was full or the audit pipeline was closed")
+                .tag("component", componentModel.getName())
+                .register(Metrics.globalRegistry);
+    }
+
+    private AuditSink createAuditSink(String componentId, ExternalProviderConfig.AuditSettings settings) {
+        if (settings.sink() == AuditSink.Type.FILE) {
+            var file = componentFile(auditDirectory, componentId, ".audit.jsonl");
+            if (file.isEmpty()) {
+                LOGGER.error("No audit file available for component [{}], auditing to the log instead", componentId);
+                return new LogAuditSink();
+            }
+            try {
+                return new FileAuditSink(file.get());
+            } catch (IOException e) {
+                LOGGER.error("Failed to open audit file [{}], auditing to the log instead: [{}]", file.get(), e.getMessage());
+            }
+        }
+        return new LogAuditSink();
+    }
+
+    Optional<AuditPipeline> findAuditPipeline(String componentId) {
+        return Optional.ofNullable(auditPipelines.get(componentId));
+    }
+
+    private HttpClient getHttpClient(KeycloakSession session, String componentId, ExternalProviderConfig config) {
+        if (!usesConnectionPool(config)) {
+            var httpClient = session.getProvider(HttpClientProvider.class).getHttpClient();
+            keycloakHttpClient = httpClient;
+            return httpClient;
+        }
+        return getConnectionPool(session, componentId, config).getHttpClient();
+    }
+
+    private boolean usesConnectionPool(ExternalProviderConfig config) {
+        return config.getConnectionSettings().warmConnections() > 0 && unsupportedHttpClientSettings.isEmpty();
+    }
+
+    private ExternalConnectionPool getConnectionPool(KeycloakSession session, String componentId, ExternalProviderConfig config) {
+        return connectionPools.computeIfAbsent(componentId, id -> {
+            var truststoreProvider = session.getProvider(TruststoreProvider.class);
+            var pool = new ExternalConnectionPool(config, truststoreProvider == null ? null : truststoreProvider.getTruststore());
+            if (executor != null) {
+                connectionWarmers.put(id, executor.scheduleWithFixedDelay(pool::warmUp, WARM_UP_INTERVAL_SECONDS, WARM_UP_INTERVAL_SECONDS,
+                        TimeUnit.SECONDS));
+            }
+            return pool;
+        });
+    }
+
+    Optional<ExternalConnectionPool> findConnectionPool(String componentId) {
+        return Optional.ofNullable(connectionPools.get(componentId));
+    }
+
+    private WireNegotiation getWireNegotiation(String componentId, ExternalProviderConfig config) {
+        return wireNegotiations.computeIfAbsent(componentId, id -> new WireNegotiation(config.getCodec()));
+    }
+
+    private ExternalCallStatistics getCallStatistics(String componentId) {
+        return callStatistics.computeIfAbsent(componentId, id -> new ExternalCallStatistics());
+    }
+
+    Optional<ExternalCallStatistics> findCallStatistics(String componentId) {
+        return Optional.ofNullable(callStatistics.get(componentId));
+    }
+
+    Optional<ExternalUserCache> findUserCache(String componentId) {
+        return Optional.ofNullable(userCaches.get(componentId));
+    }
+
+    Optional<UserAuthorizationCache> findAuthorizationCache(String componentId) {
+        return Optional.ofNullable(authorizationCaches.get(componentId));
+    }
+
+    private UserAuthorizationCache getAuthorizationCache(String componentId, ExternalProviderConfig config) {
+        if (!config.isAuthorizationEnabled()) {
+            return null;
+        }
+        return authorizationCaches.computeIfAbsent(componentId, id -> new UserAuthorizationCache(config.getAuthorizationCacheTtl()));
+    }
+
+    private LoginThrottle getThrottle(ComponentModel componentModel, ExternalProviderConfig config) {
+        var settings = config.getThrottleSettings();
+        if (settings.userAttemptsPerMinute() == 0 && settings.realmAttemptsPerSecond() == 0) {
+            return LoginThrottle.disabled();
+        }
+        return throttles.computeIfAbsent(componentModel.getId(), id -> new LoginThrottle(settings,
+                throttledCounter(componentModel, "user"), throttledCounter(componentModel, "realm")));
+    }
+
+    private static Counter throttledCounter(ComponentModel componentModel, String scope) {
+        return Counter.builder("keycloak.external_http.login.throttled")
+                .description("Credential validations rejected by the login throttle without calling the external service")
+                .tag("component", componentModel.getName())
+                .tag("scope", scope)
+                .register(Metrics.globalRegistry);
+    }
+
+    private ExternalProviderConfig getConfig(ComponentModel componentModel) {
+        var config = configs.get(componentModel.getId());
+        if (config == null || !config.isBuiltFrom(componentModel)) {
+            if (config != null) {
+                LOGGER.info("Configuration of component [{}] has changed, reloading", componentModel.getName());
+            }
+            config = ExternalProviderConfig.of(componentModel);
+            reconfigure(componentModel.getId(), config);
+        }
+        return config;
+    }
+
+    Optional<ExternalProviderConfig> findConfig(String componentId) {
+        return Optional.ofNullable(configs.get(componentId));
+    }
+
+    /**
+     * Replace the configuration snapshot of a component and drop only the state that depends on a changed setting, everything else is
+     * kept. Connection pools and audit pipelines are retired, because requests in flight may still use them.
+     */
+    private void reconfigure(String componentId, ExternalProviderConfig config) {
+        var previous = configs.put(componentId, config);
+        if (previous == null) {
+            return;
+        }
+        var serviceChanged = !previous.getServiceHost().equals(config.getServiceHost());
+        if (serviceChanged || !previous.getCacheTtl().equals(config.getCacheTtl())
+                || !previous.getSnapshotInterval().equals(config.getSnapshotInterval())) {
+            dropUserCache(componentId);
+        }
+        if (serviceChanged || previous.getCodec() != config.getCodec()) {
+            wireNegotiations.remove(componentId);
+        }
+        if (!previous.getThrottleSettings().equals(config.getThrottleSettings())) {
+            throttles.remove(componentId);
+        }
+        if (serviceChanged || previous.isAuthorizationEnabled() != config.isAuthorizationEnabled()
+                || !previous.getAuthorizationCacheTtl().equals(config.getAuthorizationCacheTtl())) {
+            authorizationCaches.remove(componentId);
+        }
+        if (serviceChanged || !previous.getConnectionSettings().equals(config.getConnectionSettings())) {
+            retireConnectionPool(componentId);
+        }
+        if (!previous.getAuditSettings().equals(config.getAuditSettings())) {
+            retireAuditPipeline(componentId);
+        }
+    }
+
+    private ExternalUserCache getUserCache(String componentId, ExternalProviderConfig config) {
+        return userCaches.computeIfAbsent(componentId, id -> createUserCache(id, config));
+    }
+
+    private ExternalUserCache createUserCache(String componentId, ExternalProviderConfig config) {
+        var cache = new ExternalUserCache(config.getCacheTtl());
+        if (executor == null) {
+            return cache;
+        }
+        cache.setRevalidator((realmId, user) -> {
+            try {
+                revalidator.execute(() -> revalidate(componentId, configs.getOrDefault(componentId, config), cache, realmId,
+                        user.getUsername()));
+            } catch (RejectedExecutionException e) {
+                cache.revalidated(realmId, user.getUsername());
+            }
+        });
+        snapshotFile(componentId).ifPresent(file -> {
+            executor.execute(() -> ExternalUserCacheSnapshot.read(file, cache));
+            var interval = config.getSnapshotInterval().toSeconds();
+            snapshotWriters.put(componentId, executor.scheduleWithFixedDelay(() -> writeSnapshot(cache, file), interval, interval,
+                    TimeUnit.SECONDS));
+        });
+        return cache;
+    }
+
+    private void dropComponentState(String componentId) {
+        wireNegotiations.remove(componentId);
+        dropUserCache(componentId);
+        throttles.remove(componentId);
+        authorizationCaches.remove(componentId);
+        retireConnectionPool(componentId);
+        retireAuditPipeline(componentId);
+    }
+
+    private void dropUserCache(String componentId) {
+        userCaches.remove(componentId);
+        var snapshotWriter = snapshotWriters.remove(componentId);
+        if (snapshotWriter != null) {
+            snapshotWriter.cancel(false);
+        }
+    }
+
+    private void retireConnectionPool(String componentId) {
+        var connectionWarmer = connectionWarmers.remove(componentId);
+        if (connectionWarmer != null) {
+            connectionWarmer.cancel(false);
+        }
+        var connectionPool = connectionPools.remove(componentId);
+        if (connectionPool != null) {
+            retire(new Retired(() -> connectionPool.getStats().getLeased() == 0, connectionPool::close,
+                    System.nanoTime() + TimeUnit.SECONDS.toNanos(RETIRE_MAX_SECONDS)));
+        }
+    }
+
+    private void retireAuditPipeline(String componentId) {
+        var auditPipeline = auditPipelines.remove(componentId);
+        if (auditPipeline != null) {
+            retire(new Retired(() -> true, auditPipeline::close, System.nanoTime()));
+        }
+    }
+
+    /**
+     * Close a replaced resource once it is idle, checked every {@value #RETIRE_GRACE_SECONDS} seconds, but not later than its deadline.
+     * Resources that are still retired when the factory is closed are closed with it.
+     */
+    private void retire(Retired resource) {
+        retired.add(resource);
+        if (executor == null) {
+            return;
+        }
+        try {
+            executor.schedule(() -> {
+                if (resource.idle().getAsBoolean() || System.nanoTime() - resource.deadline() >= 0) {
+                    if (retired.remove(resource)) {
+                        resource.close().run();
+                    }
+                } else {
+                    retire(resource);
+                }
+            }, RETIRE_GRACE_SECONDS, TimeUnit.SECONDS);
+        } catch (RejectedExecutionException e) {
+            if (retired.remove(resource)) {
+                resource.close().run();
+            }
+        }
+    }
+
+    /**
+     * Replace a stale user with the current one or remove it if the external service does not know the user anymore. If the external
+     * service cannot be asked, the user is kept and stays stale, so that it is revalidated again on its next access. Revalidation runs
+     * without a session and uses the HTTP client a session has used before, that is shared by all sessions.
+     */
+    private void revalidate(String componentId, ExternalProviderConfig config, ExternalUserCache cache, String realmId, String username) {
+        try {
+            var httpClient = sessionFreeHttpClient(componentId, config);
+            if (httpClient.isEmpty()) {
+                LOGGER.debug("No HTTP client available to revalidate cached user [{}] of realm [{}], keeping it", username, realmId);
+                return;
+            }
+            var client = new ExternalUserClient(httpClient.get(), config, getWireNegotiation(componentId, config),
+                    getCallStatistics(componentId));
+            client.resolveByUsername(realmId, username)
+                    .ifPresentOrElse(user -> cache.put(realmId, user), () -> cache.remove(realmId, username));
+        } catch (IOException e) {
+            LOGGER.warn("Failed to revalidate cached user [{}] of realm [{}], keeping it: [{}]", username, realmId, e.getMessage());
+        } catch (Exception e) {
+            LOGGER.warn("Failed to revalidate cached user [{}] of realm [{}]: [{}]", username, realmId, e.getMessage());
+        } finally {
+            cache.revalidated(realmId, username);
+        }
+    }
+
+    private Optional<HttpClient> sessionFreeHttpClient(String componentId, ExternalProviderConfig config) {
+        if (usesConnectionPool(config)) {
+            return findConnectionPool(componentId).map(ExternalConnectionPool::getHttpClient);
+        }
+        return Optional.ofNullable(keycloakHttpClient);
+    }
+
+    private Optional<Path> snapshotFile(String componentId) {
+        return componentFile(snapshotDirectory, componentId, ".snapshot");
+    }
+
+    private static Optional<Path> componentFile(Path directory, String componentId, String suffix) {
+        if (directory == null) {
+            return Optional.empty();
+        }
+        if (!FILE_NAME.matcher(componentId).matches()) {
+            LOGGER.warn("Component id [{}] is not usable as a file name, no [{}] file is written", componentId, suffix);
+            return Optional.empty();
+        }
+        return Optional.of(directory.resolve(componentId + suffix));
+    }
+
+    private void writeSnapshot(ExternalUserCache cache, Path file) {
+        try {
+            ExternalUserCacheSnapshot.write(cache, file);
+        } catch (Exception e) {
+            LOGGER.error("Failed to write cache snapshot [{}] with message [{}]", file, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Parse the configuration, so that invalid values are rejected when saved and not when the first user logs in. Warm connections are
+     * rejected if the HTTP client of Keycloak is configured with settings the own connection pool does not apply.
+     */
+    @Override
+    public void validateConfiguration(KeycloakSession session, RealmModel realm, ComponentModel config) throws ComponentValidationException {
+        var externalConfig = ExternalProviderConfig.of(config);
+        if (externalConfig.getConnectionSettings().warmConnections() > 0 && !unsupportedHttpClientSettings.isEmpty()) {
+            throw new ComponentValidationException("Warm connections are not supported with the HTTP client settings [%s] of Keycloak"
+                    .formatted(String.join(", ", unsupportedHttpClientSettings)));
+        }
+        if (externalConfig.getAuditSettings().sink() == AuditSink.Type.FILE && auditDirectory == null) {
+            throw new ComponentValidationException("The audit sink FILE requires the server option [%s] of the SPI"
+                    .formatted(AUDIT_DIRECTORY));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Replace the configuration snapshot and rebuild the state that depends on a changed setting. Updates of properties that are not
+     * owned by this provider, like the {@code lastSync} time written after each synchronization, keep all state.
+     */
+    @Override
+    public void onUpdate(KeycloakSession session, RealmModel realm, ComponentModel oldModel, ComponentModel newModel) {
+        var config = configs.get(newModel.getId());
+        if (config == null || !config.isBuiltFrom(newModel)) {
+            reconfigure(newModel.getId(), ExternalProviderConfig.of(newModel));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Drop the user cache including its checkpoints, the login throttle and the call statistics.
+     */
+    @Override
+    public void preRemove(KeycloakSession session, RealmModel realm, ComponentModel model) {
+        configs.remove(model.getId());
+        callStatistics.remove(model.getId());
+        dropComponentState(model.getId());
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Read the whole user change feed from the beginning and remove the cached users of the realm that are not part of it anymore.
+     */
+    @Override
+    public SynchronizationResult sync(KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model) {
+        return synchronize(sessionFactory, realmId, model, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Read the user change feed from the checkpoint of the local user cache, the {@code lastSync} date is not used. The checkpoint is kept
+     * per node together with the cache and written to its snapshot, because the feed has been applied to the cache of this node only. If
+     * the cache has not been synchronized before and no checkpoint has been restored from a snapshot, the whole feed is read.
+     */
+    @Override
+    public SynchronizationResult syncSince(Date lastSync, KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model) {
+        return synchronize(sessionFactory, realmId, model, true);
+    }
+
+    private SynchronizationResult synchronize(KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model,
+            boolean resume) {
+        return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+            var config = getConfig(model);
+            var cache = getUserCache(model.getId(), config);
+            var generation = cache.generation(realmId);
+            var since = resume ? cache.findCheckpoint(realmId).orElse(null) : null;
+            var consumer = new UserChangeFeedConsumer(getHttpClient(session, model.getId(), config), cache,
+                    getWireNegotiation(model.getId(), config));
+            var result = consumer.consume(config.getEndpoints(realmId).changes(), realmId, since, config.getRequestConfig(),
+                    checkpoint -> {
+                        if (!cache.setCheckpoint(realmId, generation, checkpoint)) {
+                            LOGGER.debug("Users of realm [{}] have been flushed during synchronization, ignoring checkpoint", realmId);
+                        }
+                    });
+            LOGGER.info("Synchronized user changes of realm [{}]: [{}]", realmId, result);
+            return result;
+        });
     }
 
     /**
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2005-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openwms.core.auth.keycloak;
+
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.api.trace.propagation.W3CTraceContextPropagator;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.Scope;
+import io.opentelemetry.context.propagation.TextMapSetter;
+import org.apache.http.client.methods.HttpPost;
+
+/**
+ * A ExternalUserTracing creates the OpenTelemetry spans of the provider operations and propagates the trace context to the external
+ * service with W3C {@code traceparent} headers. Spans are only created when the current Keycloak request is traced, otherwise the invalid
+ * span is returned and all operations on it are no-ops. Spans carry the realm, the operation, the cache outcome and the HTTP status, but
+ * never a username, an email address or a credential. The {@link Tracer} is resolved on the first traced operation and not when the class
+ * is loaded, because at that time the OpenTelemetry instance of Keycloak may not be installed yet and the no-op tracer would be kept
+ * forever.
+ *
+ * @author Heiko Scherrer
+ */
+final class ExternalUserTracing {
+
+    static final String REALM_ID = "keycloak.realm_id";
+    static final String OPERATION = "external_http.operation";
+    static final String CACHE_OUTCOME = "external_http.cache";
+    static final String THROTTLED = "external_http.throttled";
+    static final String STATUS_CODE = "http.response.status_code";
+    private static final String INSTRUMENTATION_SCOPE = "org.openwms.core.auth.keycloak";
+    private static final TextMapSetter<HttpPost> SETTER = (httpPost, key, value) -> httpPost.setHeader(key, value);
+    private static volatile Tracer tracer;
+
+    /**
+     * Where a user has been found.
+     */
+    enum CacheOutcome {
+        /** In the cache of the Keycloak session. */
+        SESSION,
+        /** In the session-free user cache. */
+        SHARED,
+        /** Not cached, the external service has been called. */
+        MISS
+    }
+
+    private ExternalUserTracing() {
+    }
+
+    /**
+     * Start a span for a provider operation as child of the current span. The caller must make it current and end it.
+     *
+     * @param operation The operation name, like {@code resolveByUsername}
+     * @param realmId The realm id
+     * @return The started span, or the invalid span if the current request is not traced
+     */
+    static Span startSpan(String operation, String realmId) {
+        if (!Span.current().getSpanContext().isValid()) {
+            return Span.getInvalid();
+        }
+        return tracer().spanBuilder("external-http " + operation)
+                .setSpanKind(SpanKind.CLIENT)
+                .setAttribute(OPERATION, operation)
+                .setAttribute(REALM_ID, realmId)
+                .startSpan();
+    }
+
+    /**
+     * Resolve the tracer once a request is traced, hence OpenTelemetry has been set up by then.
+     */
+    private static Tracer tracer() {
+        var current = tracer;
+        if (current == null) {
+            current = GlobalOpenTelemetry.getTracer(INSTRUMENTATION_SCOPE);
+            tracer = current;
+        }
+        return current;
+    }
+
+    /**
+     * Make the span current, without any allocation if the span is invalid.
+     *
+     * @param span The span to activate
+     * @return The scope to close when the operation is done
+     */
+    static Scope activate(Span span) {
+        return span.getSpanContext().isValid() ? span.makeCurrent() : Scope.noop();
+    }
+
+    /**
+     * Add the W3C trace context headers of the current span to the request.
+     *
+     * @param httpPost The outgoing request
+     */
+    static void inject(HttpPost httpPost) {
+        if (Span.current().getSpanContext().isValid()) {
+            W3CTraceContextPropagator.getInstance().inject(Context.current(), httpPost, SETTER);
+        }
+    }
+
+    /**
+     * Record the HTTP status of the external service on the current span.
+     *
+     * @param statusCode The HTTP status code
+     */
+    static void recordStatus(int statusCode) {
+        var span = Span.current();
+        span.setAttribute(STATUS_CODE, statusCode);
+        if (statusCode >= 500) {
+            span.setStatus(StatusCode.ERROR);
+        }
+    }
+
+    /**
+     * Record a failed call on the current span. Only the exception type is recorded, the message may contain user data.
+     *
+     * @param e The cause
+     */
+    static void recordFailure(Exception e) {
+        Span.current().setStatus(StatusCode.ERROR, e.getClass().getSimpleName());
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2005-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openwms.core.auth.keycloak;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * A FileAuditSink appends each {@link AuditEvent} as one JSON line to a file. Each batch is first written to memory and then appended as
+ * complete lines and flushed, so that a failing event never leaves a half written object behind. After a failed write the file is
+ * reopened and the next batch starts on a new line.
+ *
+ * @author Heiko Scherrer
+ */
+class FileAuditSink implements AuditSink {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileAuditSink.class);
+
+    private final Path file;
+    private final JsonFactory jsonFactory = new JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    private Writer writer;
+    private boolean broken;
+
+    /*~---------------- Constructors ------------- */
+    /**
+     * Open the file for appending, parent directories are created.
+     *
+     * @param file The file to write to
+     * @throws IOException In case the file cannot be opened
+     */
+    FileAuditSink(Path file) throws IOException {
+        this.file = file;
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        this.writer = open(file);
+    }
+
+    private static Writer open(Path file) throws IOException {
+        return Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /*~---------------- Methods ------------- */
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(List<AuditEvent> events) throws IOException {
+        var lines = new StringWriter();
+        if (broken) {
+            lines.write('\n');
+        }
+        for (var event : events) {
+            try (var generator = jsonFactory.createGenerator(lines)) {
+                generator.writeStartObject();
+                generator.writeStringField("ts", Instant.ofEpochMilli(event.timestamp()).toString());
+                generator.writeStringField("type", event.type().name());
+                generator.writeStringField("outcome", event.outcome().name());
+                generator.writeStringField("realm", event.realmId());
+                generator.writeStringField("subject", event.subject());
+                if (event.detail() != null) {
+                    generator.writeStringField("detail", event.detail());
+                }
+                generator.writeNumberField("durationMicros", event.durationMicros());
+                generator.writeEndObject();
+            }
+            lines.write('\n');
+        }
+        try {
+            if (writer == null) {
+                writer = open(file);
+            }
+            writer.write(lines.toString());
+            writer.flush();
+            broken = false;
+        } catch (IOException e) {
+            broken = true;
+            closeQuietly();
+            throw e;
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            if (writer != null) {
+                writer.close();
+            }
+        } catch (IOException e) {
+            LOGGER.debug("Failed to close audit file [{}]: [{}]", file, e.getMessage());
+        } finally {
+            writer = null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+        try {
+            if (writer != null) {
+                writer.close();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Failed to close audit file [{}]: [{}]", file, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2005-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openwms.core.auth.keycloak;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * A LogAuditSink logs each {@link AuditEvent} as one line of {@code key=value} pairs at INFO level.
+ *
+ * @author Heiko Scherrer
+ */
+class LogAuditSink implements AuditSink {
+
+    private static final Logger AUDIT = LoggerFactory.getLogger("org.openwms.core.auth.keycloak.audit");
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(List<AuditEvent> events) {
+        if (!AUDIT.isInfoEnabled()) {
+            return;
+        }
+        for (var event : events) {
+            AUDIT.info("ts={} type={} outcome={} realm={} subject={} detail={} durationMicros={}", Instant.ofEpochMilli(event.timestamp()),
+                    event.type(), event.outcome(), event.realmId(), event.subject(), event.detail(), event.durationMicros());
+        }
+    }
+}
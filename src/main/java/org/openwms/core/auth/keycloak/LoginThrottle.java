@@ -0,0 +1,151 @@
+/*
+ * Copyright 2005-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openwms.core.auth.keycloak;
+
+import io.micrometer.core.instrument.Counter;
+import org.openwms.core.auth.keycloak.ExternalProviderConfig.ThrottleSettings;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A LoginThrottle limits the credential validations that are sent to the external service, per user and per realm. Each limit is a token
+ * bucket implemented as generic cell rate algorithm: a bucket is a single {@code long} holding the theoretical arrival time of the next
+ * attempt and is updated with one CAS, so no locks are involved. User buckets are striped over a fixed array indexed by the hash of realm
+ * and normalized username. Memory does not grow with the number of distinct usernames, at the price that two users sharing a stripe also
+ * share their budget. The user limit is checked first, so that a single user cannot drain the budget of the realm, and a user token is
+ * refunded if the realm limit rejects the attempt afterwards, so that legitimate users are not locked out by a realm-wide burst.
+ *
+ * @author Heiko Scherrer
+ */
+class LoginThrottle {
+
+    private static final int STRIPES = 1 << 13;
+    private static final LoginThrottle DISABLED = new LoginThrottle(new ThrottleSettings(0, 1, 0, 1), null, null);
+
+    private final long origin = System.nanoTime();
+    private final long userInterval;
+    private final long userTolerance;
+    private final long realmInterval;
+    private final long realmTolerance;
+    private final AtomicLongArray userBuckets;
+    private final Map<String, AtomicLong> realmBuckets = new ConcurrentHashMap<>();
+    private final Counter userThrottled;
+    private final Counter realmThrottled;
+
+    /**
+     * Create a throttle.
+     *
+     * @param settings The limits
+     * @param userThrottled Counts attempts rejected by the user limit
+     * @param realmThrottled Counts attempts rejected by the realm limit
+     */
+    LoginThrottle(ThrottleSettings settings, Counter userThrottled, Counter realmThrottled) {
+        this.userInterval = settings.userAttemptsPerMinute() > 0 ? TimeUnit.MINUTES.toNanos(1) / settings.userAttemptsPerMinute() : 0;
+        this.userTolerance = userInterval * Math.max(1, settings.userBurst());
+        this.realmInterval = settings.realmAttemptsPerSecond() > 0 ? TimeUnit.SECONDS.toNanos(1) / settings.realmAttemptsPerSecond() : 0;
+        this.realmTolerance = realmInterval * Math.max(1, settings.realmBurst());
+        this.userBuckets = userInterval > 0 ? new AtomicLongArray(STRIPES) : null;
+        this.userThrottled = userThrottled;
+        this.realmThrottled = realmThrottled;
+    }
+
+    /**
+     * Return a throttle that allows all attempts.
+     *
+     * @return The shared instance
+     */
+    static LoginThrottle disabled() {
+        return DISABLED;
+    }
+
+    /*~---------------- Methods ------------- */
+    /**
+     * Try to acquire a permit to validate the credentials of a user.
+     *
+     * @param realmId The realm id
+     * @param username The username, not normalized
+     * @return {@literal true} if the attempt is allowed, {@literal false} if it must be rejected without calling the external service
+     */
+    boolean tryAcquire(String realmId, String username) {
+        var now = System.nanoTime() - origin;
+        var stripe = -1;
+        if (userBuckets != null) {
+            stripe = spread(new CombinedUserKey(ExternalUserCache.normalize(username), realmId).hashCode()) & (STRIPES - 1);
+            if (!tryAcquire(userBuckets, stripe, userInterval, userTolerance, now)) {
+                userThrottled.increment();
+                return false;
+            }
+        }
+        if (realmInterval > 0) {
+            var bucket = realmBuckets.computeIfAbsent(realmId, id -> new AtomicLong());
+            if (!tryAcquire(bucket, realmInterval, realmTolerance, now)) {
+                if (stripe >= 0) {
+                    userBuckets.addAndGet(stripe, -userInterval);
+                }
+                realmThrottled.increment();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean tryAcquire(AtomicLongArray buckets, int index, long interval, long tolerance, long now) {
+        while (true) {
+            var tat = buckets.get(index);
+            var next = Math.max(tat, now) + interval;
+            if (next - now > tolerance) {
+                return false;
+            }
+            if (buckets.compareAndSet(index, tat, next)) {
+                return true;
+            }
+        }
+    }
+
+    private static boolean tryAcquire(AtomicLong bucket, long interval, long tolerance, long now) {
+        while (true) {
+            var tat = bucket.get();
+            var next = Math.max(tat, now) + interval;
+            if (next - now > tolerance) {
+                return false;
+            }
+            if (bucket.compareAndSet(tat, next)) {
+                return true;
+            }
+        }
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /*~---------------- Accessors ------------- */
+    boolean isEnabled() {
+        return userBuckets != null || realmInterval > 0;
+    }
+
+    long getUserThrottled() {
+        return userThrottled == null ? 0 : (long) userThrottled.count();
+    }
+
+    long getRealmThrottled() {
+        return realmThrottled == null ? 0 : (long) realmThrottled.count();
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2005-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openwms.core.auth.keycloak;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * A MissedKeys counts the cache misses per username or email, to find out which users are looked up repeatedly without being found. The
+ * number of tracked keys is bounded by keeping two generations of counts. New keys are counted in the current generation, when it is full
+ * it becomes the previous generation and the former previous generation is dropped at once, so recording a miss never scans the tracked
+ * keys. A key of the previous generation that misses again is moved to the current generation with its count, so the counts are
+ * approximate but keys that miss often survive.
+ *
+ * @author Heiko Scherrer
+ */
+class MissedKeys {
+
+    private static final int MAX_KEYS = 1024;
+    private static final int GENERATION_SIZE = MAX_KEYS / 2;
+
+    private volatile Map<Key, LongAdder> current = new ConcurrentHashMap<>();
+    private volatile Map<Key, LongAdder> previous = new ConcurrentHashMap<>();
+
+    /**
+     * A missed key.
+     *
+     * @param realmId The realm id
+     * @param key The normalized username or email
+     */
+    record Key(String realmId, String key) {
+    }
+
+    /**
+     * A missed key and how often it missed.
+     *
+     * @param key The normalized username or email
+     * @param misses The number of misses
+     */
+    record Count(String key, long misses) {
+    }
+
+    /*~---------------- Methods ------------- */
+    /**
+     * Count a miss.
+     *
+     * @param realmId The realm id
+     * @param key The normalized username or email
+     */
+    void record(String realmId, String key) {
+        var k = new Key(realmId, key);
+        var generation = current;
+        var counter = generation.get(k);
+        if (counter == null) {
+            if (generation.size() >= GENERATION_SIZE) {
+                generation = rotate(generation);
+            }
+            var older = previous;
+            counter = generation.computeIfAbsent(k, x -> {
+                var c = new LongAdder();
+                var former = older.get(x);
+                if (former != null) {
+                    c.add(former.sum());
+                }
+                return c;
+            });
+        }
+        counter.increment();
+    }
+
+    private synchronized Map<Key, LongAdder> rotate(Map<Key, LongAdder> full) {
+        if (current == full) {
+            previous = full;
+            current = new ConcurrentHashMap<>();
+        }
+        return current;
+    }
+
+    /**
+     * Return the keys of a realm that missed most often.
+     *
+     * @param realmId The realm id
+     * @param limit The maximum number of keys
+     * @return The keys, ordered by the number of misses descending
+     */
+    List<Count> top(String realmId, int limit) {
+        var generation = current;
+        return Stream.concat(generation.entrySet().stream(),
+                        previous.entrySet().stream().filter(e -> !generation.containsKey(e.getKey())))
+                .filter(e -> e.getKey().realmId().equals(realmId))
+                .map(e -> new Count(e.getKey().key(), e.getValue().sum()))
+                .sorted(Comparator.comparingLong(Count::misses).reversed())
+                .limit(limit)
+                .toList();
+    }
+
+    /**
+     * Forget all keys of one realm.
+     *
+     * @param realmId The realm id
+     */
+    void clear(String realmId) {
+        current.keySet().removeIf(k -> k.realmId().equals(realmId));
+        previous.keySet().removeIf(k -> k.realmId().equals(realmId));
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2005-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openwms.core.auth.keycloak;
+
+import org.openwms.core.auth.keycloak.api.UserAuthorization;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * A UserAuthorizationCache is the session-free cache of the {@link UserAuthorization}s, with its own time-to-live and independent of the
+ * {@link ExternalUserCache}. Thereby a plain credential check never loads authorization data, and authorization data can be kept shorter
+ * than the user profile.
+ *
+ * @author Heiko Scherrer
+ */
+class UserAuthorizationCache {
+
+    private final long ttlMillis;
+    private final Map<CombinedUserKey, Entry> authorizations = new ConcurrentHashMap<>();
+
+    private record Entry(String realmId, UserAuthorization authorization, long loadedAt) {
+    }
+
+    /*~---------------- Constructors ------------- */
+    /**
+     * Create a cache where entries expire after the given {@code ttl}.
+     *
+     * @param ttl The time-to-live of entries, {@link Duration#ZERO} disables caching
+     */
+    UserAuthorizationCache(Duration ttl) {
+        this.ttlMillis = ttl.toMillis();
+    }
+
+    /*~---------------- Methods ------------- */
+    /**
+     * Get the authorization of a user from the cache or load it with the {@code loader}. Failed loads are not cached.
+     *
+     * @param realmId The realm id
+     * @param username The username, not normalized
+     * @param loader Loads the authorization from the external service
+     * @return The authorization or nothing if it could not be loaded
+     */
+    Optional<UserAuthorization> get(String realmId, String username, Supplier<Optional<UserAuthorization>> loader) {
+        var key = new CombinedUserKey(ExternalUserCache.normalize(username), realmId);
+        var entry = authorizations.get(key);
+        if (entry != null && System.currentTimeMillis() - entry.loadedAt() <= ttlMillis) {
+            return Optional.of(entry.authorization());
+        }
+        var loaded = loader.get();
+        if (ttlMillis > 0) {
+            loaded.ifPresent(a -> authorizations.put(key, new Entry(realmId, a, System.currentTimeMillis())));
+        }
+        return loaded;
+    }
+
+    /**
+     * Remove all authorizations of one realm.
+     *
+     * @param realmId The realm id
+     */
+    void clear(String realmId) {
+        authorizations.values().removeIf(e -> e.realmId().equals(realmId));
+    }
+
+    /**
+     * Return the number of cached authorizations.
+     *
+     * @return Number of entries, including expired ones
+     */
+    int size() {
+        return authorizations.size();
+    }
+}
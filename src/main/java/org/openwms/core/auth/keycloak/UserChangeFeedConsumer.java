@@ -0,0 +1,159 @@
+/*
+ * Copyright 2005-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openwms.core.auth.keycloak;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.util.EntityUtils;
+import org.keycloak.storage.user.SynchronizationResult;
+import org.openwms.core.auth.keycloak.api.UserChange;
+import org.openwms.core.auth.keycloak.api.UserChangesRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.function.Consumer;
+
+import static org.openwms.core.auth.keycloak.ExternalUserProvider.ACCEPT;
+import static org.openwms.core.auth.keycloak.ExternalUserProvider.CONTENT_TYPE;
+
+/**
+ * A UserChangeFeedConsumer reads the user change feed of the external service and applies each {@link UserChange} to the
+ * {@link ExternalUserCache}. Records are read one after the other from the response stream, so memory consumption does not depend on the
+ * size of the feed. Depending on the negotiated {@link WireCodec} the feed is either newline delimited JSON or a CBOR sequence. Applied
+ * users are not subject to the TTL of the cache. The checkpoint of the last applied record is handed over to a {@code checkpointWriter} every
+ * {@value #CHECKPOINT_INTERVAL} records and at the end of the feed, hence an interrupted synchronization resumes from the last written
+ * checkpoint and not from the beginning. After the whole feed has been read from the beginning, cached users of the realm that were not
+ * part of it are removed.
+ *
+ * @author Heiko Scherrer
+ */
+class UserChangeFeedConsumer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserChangeFeedConsumer.class);
+    static final int CHECKPOINT_INTERVAL = 500;
+
+    private final HttpClient httpClient;
+    private final ExternalUserCache cache;
+    private final WireNegotiation negotiation;
+
+    UserChangeFeedConsumer(HttpClient httpClient, ExternalUserCache cache, WireNegotiation negotiation) {
+        this.httpClient = httpClient;
+        this.cache = cache;
+        this.negotiation = negotiation;
+    }
+
+    /**
+     * Request all changes since {@code since} from the {@code endpoint} and apply them to the cache.
+     *
+     * @param endpoint The URI of the change feed endpoint
+     * @param realmId The realm the changes belong to
+     * @param since The checkpoint to start from, {@literal null} to request all users
+     * @param requestConfig The request configuration to use
+     * @param checkpointWriter Called with the checkpoint of the last applied record
+     * @return The result with the number of added, updated, removed and failed records
+     */
+    SynchronizationResult consume(URI endpoint, String realmId, String since, RequestConfig requestConfig, Consumer<String> checkpointWriter) {
+        var result = new SynchronizationResult();
+        var startedAt = System.currentTimeMillis();
+        LOGGER.debug("Read user changes of realm [{}] since checkpoint [{}]", realmId, since);
+        try {
+            var codec = negotiation.current();
+            var httpResponse = httpClient.execute(prepare(endpoint, since, requestConfig, codec));
+            if (httpResponse.getStatusLine().getStatusCode() == 415 && negotiation.rejected(codec)) {
+                EntityUtils.consumeQuietly(httpResponse.getEntity());
+                codec = WireCodec.json();
+                httpResponse = httpClient.execute(prepare(endpoint, since, requestConfig, codec));
+            }
+            try {
+                if (httpResponse.getStatusLine().getStatusCode() != 200) {
+                    LOGGER.error("Failed to read user changes of realm [{}], status code [{}]", realmId,
+                            httpResponse.getStatusLine().getStatusCode());
+                    result.increaseFailed();
+                    return result;
+                }
+                apply(codec, httpResponse.getEntity(), realmId, result, checkpointWriter);
+                if (since == null) {
+                    result.setRemoved(result.getRemoved() + cache.sweep(realmId, startedAt));
+                }
+            } finally {
+                EntityUtils.consumeQuietly(httpResponse.getEntity());
+            }
+        } catch (IOException e) {
+            LOGGER.error("Reading user changes of realm [{}] interrupted with message [{}]", realmId, e.getMessage(), e);
+            result.increaseFailed();
+        }
+        return result;
+    }
+
+    private static HttpPost prepare(URI endpoint, String since, RequestConfig requestConfig, WireCodec codec) throws IOException {
+        var httpPost = new HttpPost(endpoint);
+        httpPost.setHeader(CONTENT_TYPE, codec.getContentType());
+        httpPost.setHeader(ACCEPT, codec.getStreamAccept());
+        httpPost.setEntity(codec.encode(new UserChangesRequest(since)));
+        httpPost.setConfig(requestConfig);
+        return httpPost;
+    }
+
+    private void apply(WireCodec codec, HttpEntity entity, String realmId, SynchronizationResult result, Consumer<String> checkpointWriter)
+            throws IOException {
+        String checkpoint = null;
+        var pending = 0;
+        try (var it = codec.decodeStream(entity, UserChange.class)) {
+            while (it.hasNextValue()) {
+                var change = it.nextValue();
+                applyChange(realmId, change, result);
+                if (change.getCheckpoint() != null) {
+                    checkpoint = change.getCheckpoint();
+                    if (++pending >= CHECKPOINT_INTERVAL) {
+                        checkpointWriter.accept(checkpoint);
+                        pending = 0;
+                    }
+                }
+            }
+        } finally {
+            if (pending > 0) {
+                checkpointWriter.accept(checkpoint);
+            }
+        }
+    }
+
+    private void applyChange(String realmId, UserChange change, SynchronizationResult result) {
+        var user = change.getExternalUser();
+        if (change.getType() == null || user == null || user.getUsername() == null) {
+            LOGGER.warn("Skipping incomplete user change [{}] in realm [{}]", change.getCheckpoint(), realmId);
+            result.increaseFailed();
+            return;
+        }
+        switch (change.getType()) {
+            case UPSERT -> {
+                if (cache.putSynced(realmId, user)) {
+                    result.increaseAdded();
+                } else {
+                    result.increaseUpdated();
+                }
+            }
+            case DELETE -> {
+                if (cache.remove(realmId, user.getUsername())) {
+                    result.increaseRemoved();
+                }
+            }
+        }
+    }
+}
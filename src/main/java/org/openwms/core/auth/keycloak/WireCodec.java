@@ -0,0 +1,138 @@
+/*
+ * Copyright 2005-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openwms.core.auth.keycloak;
+
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.openwms.core.auth.keycloak.api.WireFormat;
+import org.openwms.core.auth.keycloak.api.WireFormatCodec;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * A WireCodec encodes request bodies in the configured {@link WireFormat} and decodes response bodies in the format the external service
+ * has chosen, by looking at the {@code Content-Type} of the response. The {@link ObjectMapper}s are the ones of the {@link WireFormatCodec}
+ * of the client jar, so that Keycloak and the service implementations encode alike.
+ *
+ * @author Heiko Scherrer
+ */
+final class WireCodec {
+
+    private static final Map<WireFormat, ObjectMapper> MAPPERS = new EnumMap<>(WireFormat.class);
+    static {
+        for (var format : WireFormat.values()) {
+            MAPPERS.put(format, WireFormatCodec.of(format).getMapper());
+        }
+    }
+    private static final Map<WireFormat, WireCodec> CODECS = new EnumMap<>(WireFormat.class);
+    static {
+        for (var format : WireFormat.values()) {
+            CODECS.put(format, new WireCodec(format));
+        }
+    }
+
+    private final WireFormat format;
+    private final String accept;
+    private final String streamAccept;
+
+    private WireCodec(WireFormat format) {
+        this.format = format;
+        this.accept = format == WireFormat.JSON
+                ? format.getMediaType()
+                : format.getMediaType() + ", " + WireFormat.JSON.getMediaType() + ";q=0.5";
+        this.streamAccept = format == WireFormat.JSON
+                ? format.getStreamMediaType()
+                : format.getStreamMediaType() + ", " + WireFormat.JSON.getStreamMediaType() + ";q=0.5";
+    }
+
+    /**
+     * Get the codec for the given format.
+     *
+     * @param format The preferred format
+     * @return The shared instance
+     */
+    static WireCodec of(WireFormat format) {
+        return CODECS.get(format);
+    }
+
+    /**
+     * Get the codec that is used when the external service rejects the preferred format.
+     *
+     * @return The JSON codec
+     */
+    static WireCodec json() {
+        return CODECS.get(WireFormat.JSON);
+    }
+
+    /*~---------------- Methods ------------- */
+    /**
+     * Encode the {@code body} in the preferred format.
+     *
+     * @param body The request body
+     * @return The entity with the matching Content-Type
+     * @throws IOException In case the body could not be encoded
+     */
+    HttpEntity encode(Object body) throws IOException {
+        return new ByteArrayEntity(MAPPERS.get(format).writeValueAsBytes(body), ContentType.create(format.getMediaType()));
+    }
+
+    /**
+     * Decode a single document in the format announced by the entity.
+     *
+     * @param entity The response entity
+     * @param type The expected type
+     * @return The decoded instance
+     * @throws IOException In case the content could not be decoded
+     */
+    <T> T decode(HttpEntity entity, Class<T> type) throws IOException {
+        return mapperFor(entity).readValue(entity.getContent(), type);
+    }
+
+    /**
+     * Decode a stream of documents in the format announced by the entity. Documents are read lazily one after the other.
+     *
+     * @param entity The response entity
+     * @param type The expected type of each document
+     * @return An iterator that must be closed by the caller
+     * @throws IOException In case the stream could not be opened
+     */
+    <T> MappingIterator<T> decodeStream(HttpEntity entity, Class<T> type) throws IOException {
+        return mapperFor(entity).readerFor(type).readValues(entity.getContent());
+    }
+
+    private static ObjectMapper mapperFor(HttpEntity entity) {
+        var contentType = entity.getContentType();
+        return MAPPERS.get(WireFormat.fromContentType(contentType == null ? null : contentType.getValue()));
+    }
+
+    /*~---------------- Accessors ------------- */
+    String getContentType() {
+        return format.getMediaType();
+    }
+
+    String getAccept() {
+        return accept;
+    }
+
+    String getStreamAccept() {
+        return streamAccept;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2005-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openwms.core.auth.keycloak;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A WireNegotiation remembers per component which {@link WireCodec} the external service accepts. It starts with the configured codec and
+ * falls back to JSON for all following calls as soon as the service rejected the preferred format once, instead of paying a rejected
+ * request on every call. The preferred format is tried again after {@value #RETRY_PREFERRED_MINUTES} minutes, so that a service that has
+ * been upgraded in the meantime is detected without a restart.
+ *
+ * @author Heiko Scherrer
+ */
+final class WireNegotiation {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WireNegotiation.class);
+    static final long RETRY_PREFERRED_MINUTES = 60;
+
+    private final WireCodec preferred;
+    private volatile long rejectedAt;
+    private volatile boolean rejected;
+
+    /*~---------------- Constructors ------------- */
+    WireNegotiation(WireCodec preferred) {
+        this.preferred = preferred;
+    }
+
+    /*~---------------- Methods ------------- */
+    /**
+     * Get the codec to encode the next request with.
+     *
+     * @return The preferred codec or JSON if the external service has rejected the preferred one recently
+     */
+    WireCodec current() {
+        if (rejected && System.nanoTime() - rejectedAt < TimeUnit.MINUTES.toNanos(RETRY_PREFERRED_MINUTES)) {
+            return WireCodec.json();
+        }
+        return preferred;
+    }
+
+    /**
+     * Remember that the external service answered a request encoded with {@code codec} with {@code 415-UNSUPPORTED_MEDIA_TYPE}.
+     *
+     * @param codec The rejected codec
+     * @return {@literal true} if the request should be repeated in JSON, {@literal false} if JSON itself has been rejected
+     */
+    boolean rejected(WireCodec codec) {
+        if (codec == WireCodec.json()) {
+            return false;
+        }
+        if (!rejected || current() != WireCodec.json()) {
+            LOGGER.info("External service does not accept [{}], using JSON for the next [{}] minutes", codec.getContentType(),
+                    RETRY_PREFERRED_MINUTES);
+        }
+        rejectedAt = System.nanoTime();
+        rejected = true;
+        return true;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2005-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openwms.core.auth.keycloak.api;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.StringJoiner;
+
+/**
+ * A UserAuthorization holds the authorization data of one user, that Keycloak loads on demand and separately from the
+ * {@link ExternalUser}. Roles and groups are referenced by name and must exist in the Keycloak realm, unknown ones are ignored.
+ *
+ * @author Heiko Scherrer
+ */
+public class UserAuthorization implements Serializable {
+
+    /** Names of realm roles. */
+    private List<String> realmRoles = new ArrayList<>();
+    /** Names of client roles, mapped by the clientId of the client. */
+    private Map<String, List<String>> clientRoles = new HashMap<>();
+    /** Paths of groups, like {@code /parent/child}. */
+    private List<String> groups = new ArrayList<>();
+    /** Custom attributes of the user. */
+    private Map<String, List<String>> attributes = new HashMap<>();
+
+    /*~---------------- Methods ------------- */
+    /**
+     * {@inheritDoc}
+     *
+     * All fields.
+     */
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", UserAuthorization.class.getSimpleName() + "[", "]")
+                .add("realmRoles=" + realmRoles)
+                .add("clientRoles=" + clientRoles)
+                .add("groups=" + groups)
+                .add("attributes=" + attributes.keySet())
+                .toString();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * All fields.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (o == null || getClass() != o.getClass()) return false;
+        var that = (UserAuthorization) o;
+        return Objects.equals(realmRoles, that.realmRoles) && Objects.equals(clientRoles, that.clientRoles) && Objects.equals(groups, that.groups) && Objects.equals(attributes, that.attributes);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * All fields.
+     */
+    @Override
+    public int hashCode() {
+        return Objects.hash(realmRoles, clientRoles, groups, attributes);
+    }
+
+    /*~---------------- Accessors ------------- */
+    public List<String> getRealmRoles() {
+        return realmRoles;
+    }
+
+    public void setRealmRoles(List<String> realmRoles) {
+        this.realmRoles = realmRoles == null ? new ArrayList<>() : realmRoles;
+    }
+
+    public Map<String, List<String>> getClientRoles() {
+        return clientRoles;
+    }
+
+    public void setClientRoles(Map<String, List<String>> clientRoles) {
+        this.clientRoles = clientRoles == null ? new HashMap<>() : clientRoles;
+    }
+
+    public List<String> getGroups() {
+        return groups;
+    }
+
+    public void setGroups(List<String> groups) {
+        this.groups = groups == null ? new ArrayList<>() : groups;
+    }
+
+    public Map<String, List<String>> getAttributes() {
+        return attributes;
+    }
+
+    public void setAttributes(Map<String, List<String>> attributes) {
+        this.attributes = attributes == null ? new HashMap<>() : attributes;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2005-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openwms.core.auth.keycloak.api;
+
+import java.io.Serializable;
+import java.util.Objects;
+import java.util.StringJoiner;
+
+/**
+ * A UserChange is one record of the user change feed. The feed is sent as newline delimited JSON ({@value #APPLICATION_NDJSON}), one
+ * record per line and ordered by the time of change. Each record carries the opaque checkpoint token of the external service that
+ * identifies the position right after this change.
+ *
+ * @author Heiko Scherrer
+ */
+public class UserChange implements Serializable {
+
+    /** Media type of the change feed. */
+    public static final String APPLICATION_NDJSON = "application/x-ndjson";
+
+    /**
+     * The kind of change.
+     */
+    public enum Type {
+        /** The user has been created or updated. */
+        UPSERT,
+        /** The user has been deleted or disabled. */
+        DELETE
+    }
+
+    private Type type;
+    private ExternalUser externalUser;
+    private String checkpoint;
+
+    /*~---------------- Methods ------------- */
+    /**
+     * {@inheritDoc}
+     *
+     * All fields.
+     */
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", UserChange.class.getSimpleName() + "[", "]")
+                .add("type=" + type)
+                .add("externalUser=" + externalUser)
+                .add("checkpoint='" + checkpoint + "'")
+                .toString();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * All fields.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (o == null || getClass() != o.getClass()) return false;
+        var that = (UserChange) o;
+        return type == that.type && Objects.equals(externalUser, that.externalUser) && Objects.equals(checkpoint, that.checkpoint);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * All fields.
+     */
+    @Override
+    public int hashCode() {
+        return Objects.hash(type, externalUser, checkpoint);
+    }
+
+    /*~---------------- Accessors ------------- */
+    public Type getType() {
+        return type;
+    }
+
+    public void setType(Type type) {
+        this.type = type;
+    }
+
+    public ExternalUser getExternalUser() {
+        return externalUser;
+    }
+
+    public void setExternalUser(ExternalUser externalUser) {
+        this.externalUser = externalUser;
+    }
+
+    public String getCheckpoint() {
+        return checkpoint;
+    }
+
+    public void setCheckpoint(String checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+}
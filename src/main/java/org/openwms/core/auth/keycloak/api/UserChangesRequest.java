@@ -0,0 +1,67 @@
+/*
+ * Copyright 2005-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openwms.core.auth.keycloak.api;
+
+import java.beans.ConstructorProperties;
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * A UserChangesRequest asks the external service for all user changes that happened after the given checkpoint. The response is a stream of
+ * {@link UserChange} records.
+ *
+ * @author Heiko Scherrer
+ */
+public class UserChangesRequest implements Serializable {
+
+    /** The checkpoint token of the last applied change, {@literal null} to request all users. */
+    private String since;
+
+    /*~---------------- Constructors ------------- */
+    @ConstructorProperties({"since"})
+    public UserChangesRequest(String since) {
+        this.since = since;
+    }
+
+    /*~---------------- Methods ------------- */
+
+    /**
+     * {@inheritDoc}
+     *
+     * All fields.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (o == null || getClass() != o.getClass()) return false;
+        var that = (UserChangesRequest) o;
+        return Objects.equals(since, that.since);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * All fields.
+     */
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(since);
+    }
+
+    /*~---------------- Accessors ------------- */
+    public String getSince() {
+        return since;
+    }
+}
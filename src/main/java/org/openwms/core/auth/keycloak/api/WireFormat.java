@@ -0,0 +1,117 @@
+/*
+ * Copyright 2005-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openwms.core.auth.keycloak.api;
+
+/**
+ * A WireFormat defines the encodings of the data exchange models that Keycloak and the external service may agree on. Keycloak sends the
+ * request body in the configured format and announces in the {@code Accept} header that it reads the configured format as well as JSON.
+ * A service implementation that does not support a binary format simply keeps on responding with JSON.
+ *
+ * @author Heiko Scherrer
+ */
+public enum WireFormat {
+
+    /** Plain JSON text, the default and the fallback. */
+    JSON("application/json", UserChange.APPLICATION_NDJSON),
+    /** Concise Binary Object Representation (RFC 8949), a change feed is sent as CBOR sequence (RFC 8742). */
+    CBOR("application/cbor", "application/cbor-seq");
+
+    private final String mediaType;
+    private final String streamMediaType;
+
+    WireFormat(String mediaType, String streamMediaType) {
+        this.mediaType = mediaType;
+        this.streamMediaType = streamMediaType;
+    }
+
+    /**
+     * Find the format that belongs to the given {@code Content-Type} header value, parameters like the charset are ignored.
+     *
+     * @param contentType The value of the Content-Type header, may be {@literal null}
+     * @return The matching format or {@link #JSON} as fallback
+     */
+    public static WireFormat fromContentType(String contentType) {
+        if (contentType != null) {
+            var mediaType = contentType.split(";", 2)[0].trim();
+            for (var format : values()) {
+                if (format.mediaType.equalsIgnoreCase(mediaType) || format.streamMediaType.equalsIgnoreCase(mediaType)) {
+                    return format;
+                }
+            }
+        }
+        return JSON;
+    }
+
+    /**
+     * Find the format a response should be encoded in, by the given {@code Accept} header value. The format of the media range with the
+     * highest quality wins, ranges with an unknown media type are ignored.
+     *
+     * @param accept The value of the Accept header, may be {@literal null}
+     * @return The preferred format or {@link #JSON} as fallback
+     */
+    public static WireFormat fromAccept(String accept) {
+        var preferred = JSON;
+        var preferredQuality = -1.0;
+        if (accept != null) {
+            for (var range : accept.split(",")) {
+                var parts = range.split(";");
+                var quality = quality(parts);
+                var mediaType = parts[0].trim();
+                for (var format : values()) {
+                    if ((format.mediaType.equalsIgnoreCase(mediaType) || format.streamMediaType.equalsIgnoreCase(mediaType))
+                            && quality > preferredQuality) {
+                        preferred = format;
+                        preferredQuality = quality;
+                    }
+                }
+            }
+        }
+        return preferredQuality == 0 ? JSON : preferred;
+    }
+
+    private static double quality(String[] parts) {
+        for (var i = 1; i < parts.length; i++) {
+            var parameter = parts[i].trim();
+            if (parameter.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    /*~---------------- Accessors ------------- */
+    /**
+     * Return the media type of single documents.
+     *
+     * @return The media type
+     */
+    public String getMediaType() {
+        return mediaType;
+    }
+
+    /**
+     * Return the media type of a stream of documents, like the user change feed.
+     *
+     * @return The media type
+     */
+    public String getStreamMediaType() {
+        return streamMediaType;
+    }
+}
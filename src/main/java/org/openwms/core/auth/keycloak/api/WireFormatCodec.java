@@ -0,0 +1,148 @@
+/*
+ * Copyright 2005-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openwms.core.auth.keycloak.api;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SequenceWriter;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A WireFormatCodec encodes and decodes the data exchange models in one {@link WireFormat}, for service implementations that read the
+ * requests of Keycloak and write the responses. The codec of a request is found by its {@code Content-Type}, the codec of a response by
+ * the {@code Accept} header of the request. Single documents are written as is, a change feed as newline delimited JSON or as CBOR
+ * sequence. The CBOR encoding requires {@code com.fasterxml.jackson.dataformat:jackson-dataformat-cbor} on the classpath of the service,
+ * a service that only speaks JSON does not need it. The underlying {@link ObjectMapper}s are created once and shared.
+ *
+ * @author Heiko Scherrer
+ */
+public final class WireFormatCodec {
+
+    private static final WireFormatCodec JSON = new WireFormatCodec(WireFormat.JSON, new ObjectMapper());
+
+    private final WireFormat format;
+    private final ObjectMapper mapper;
+
+    /** The CBOR codec is created on first use, so that the CBOR dependency is only needed by services that use it. */
+    private static final class Cbor {
+        private static final WireFormatCodec CODEC = new WireFormatCodec(WireFormat.CBOR, new CBORMapper());
+    }
+
+    private WireFormatCodec(WireFormat format, ObjectMapper mapper) {
+        this.format = format;
+        this.mapper = mapper;
+    }
+
+    /**
+     * Get the codec of the given format.
+     *
+     * @param format The wire format
+     * @return The shared instance
+     */
+    public static WireFormatCodec of(WireFormat format) {
+        return format == WireFormat.CBOR ? Cbor.CODEC : JSON;
+    }
+
+    /**
+     * Get the codec to decode a request body with the given {@code Content-Type}.
+     *
+     * @param contentType The value of the Content-Type header, may be {@literal null}
+     * @return The matching codec or the JSON codec as fallback
+     */
+    public static WireFormatCodec forContentType(String contentType) {
+        return of(WireFormat.fromContentType(contentType));
+    }
+
+    /**
+     * Get the codec to encode a response to a request with the given {@code Accept} header.
+     *
+     * @param accept The value of the Accept header, may be {@literal null}
+     * @return The codec of the most preferred format or the JSON codec as fallback
+     */
+    public static WireFormatCodec forAccept(String accept) {
+        return of(WireFormat.fromAccept(accept));
+    }
+
+    /*~---------------- Methods ------------- */
+    /**
+     * Encode a single document.
+     *
+     * @param value The document
+     * @return The encoded bytes
+     * @throws IOException In case the document could not be encoded
+     */
+    public byte[] encode(Object value) throws IOException {
+        return mapper.writeValueAsBytes(value);
+    }
+
+    /**
+     * Decode a single document.
+     *
+     * @param in The stream to read from
+     * @param type The expected type
+     * @param <T> The type of the document
+     * @return The decoded document
+     * @throws IOException In case the content could not be decoded
+     */
+    public <T> T decode(InputStream in, Class<T> type) throws IOException {
+        return mapper.readValue(in, type);
+    }
+
+    /**
+     * Open a writer for a stream of documents like the user change feed. JSON documents are separated by a newline, CBOR documents are
+     * written one after the other. Closing the writer closes the {@code out} stream.
+     *
+     * @param out The stream to write to, usually the response body
+     * @return The writer, must be closed by the caller
+     * @throws IOException In case the writer could not be opened
+     */
+    public SequenceWriter openStream(OutputStream out) throws IOException {
+        return format == WireFormat.JSON
+                ? mapper.writer().withRootValueSeparator("\n").writeValues(out)
+                : mapper.writer().writeValues(out);
+    }
+
+    /*~---------------- Accessors ------------- */
+    /**
+     * Return the media type to set as {@code Content-Type} of a single document.
+     *
+     * @return The media type
+     */
+    public String getMediaType() {
+        return format.getMediaType();
+    }
+
+    /**
+     * Return the media type to set as {@code Content-Type} of a stream of documents.
+     *
+     * @return The media type
+     */
+    public String getStreamMediaType() {
+        return format.getStreamMediaType();
+    }
+
+    /**
+     * Return the shared mapper of this format, to be used by frameworks that bind request and response bodies themselves.
+     *
+     * @return The mapper, must not be reconfigured
+     */
+    public ObjectMapper getMapper() {
+        return mapper;
+    }
+}